@@ -0,0 +1,56 @@
+package org.snomed.negative_delta;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event for one phase of a run, recorded when the JVM is started with eg
+ * -XX:StartFlightRecording=filename=run.jfr.  Kept in src/jfr/java, which is only compiled
+ * on JDK 11 or later, and only loaded once JFR is known to be present.
+ */
+@Name("org.snomed.negative_delta.Phase")
+@Label("Negative Delta Phase")
+@Category("SNOMED Negative Delta")
+@Description("One phase of processing a table, or of the run as a whole")
+class PhaseEvent extends Event {
+	
+	@Label("Scope")
+	@Description("Table name, or 'run' for phases of the whole run")
+	String scope;
+	
+	@Label("Phase")
+	String phase;
+	
+	@Label("Rows")
+	long rows;
+	
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+	
+	//Looked up by name from PhaseTimer, so that the main classes compile without this one
+	static class Recorder implements PhaseRecorder {
+		
+		@Override
+		public Object begin(String scope, Phase phase) {
+			PhaseEvent event = new PhaseEvent();
+			event.scope = scope;
+			event.phase = phase.name();
+			event.begin();
+			return event;
+		}
+		
+		@Override
+		public void commit(Object event, long rows, long bytes) {
+			PhaseEvent phaseEvent = (PhaseEvent) event;
+			phaseEvent.end();
+			phaseEvent.rows = rows;
+			phaseEvent.bytes = bytes;
+			phaseEvent.commit();
+		}
+	}
+}
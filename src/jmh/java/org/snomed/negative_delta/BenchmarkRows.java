@@ -0,0 +1,53 @@
+package org.snomed.negative_delta;
+
+import org.snomed.ApplicationException;
+
+/**
+ * Synthetic concept rows shared by the benchmarks, so that every benchmark works over
+ * rows of the same shape as a real release.
+ */
+final class BenchmarkRows {
+	
+	static final long FIRST_EFFECTIVE_TIME = 20020131L;
+	//Name of the Full file the rows are taken to come from, so that the table is recognised
+	static final String CONCEPT_FULL = "sct2_Concept_Full_INT_20170731.txt";
+	private static final String MODULE = "900000000000207008";
+	private static final String PRIMITIVE = "900000000000074008";
+	
+	private BenchmarkRows() {
+	}
+	
+	static String sctid(int component) {
+		return Long.toString((100000L + component) * 1000L + 101L);
+	}
+	
+	//One release every six months, counting forward from the first
+	static long effectiveTime(int release) {
+		int year = 2002 + release / 2;
+		return release % 2 == 0 ? year * 10000L + 131L : year * 10000L + 731L;
+	}
+	
+	static String conceptRow(int component, int release) {
+		return sctid(component) + "\t" + effectiveTime(release) + "\t" + (release % 3 == 2 ? "0" : "1") + "\t" + MODULE + "\t" + PRIMITIVE;
+	}
+	
+	//Deletion rows carry deletionEffectiveTime and deletionActive either side of the active field
+	static String deletionRow(int component, int release) {
+		return sctid(component) + "\t" + effectiveTime(release) + "\t" + effectiveTime(release + 1) + "\t" 
+				+ (release % 3 == 2 ? "0" : "1") + "\t1\t" + MODULE + "\t" + PRIMITIVE;
+	}
+	
+	/**
+	 * @return an index of components, each with one row for each of historyDepth releases
+	 */
+	static ComponentIndex buildHistories(int components, int historyDepth) throws ApplicationException {
+		ComponentIndex index = new ComponentIndex();
+		for (int component = 0; component < components; component++) {
+			String id = sctid(component);
+			for (int release = 0; release < historyDepth; release++) {
+				index.add(0L, Long.parseLong(id), new Rf2Row(conceptRow(component, release), false));
+			}
+		}
+		return index;
+	}
+}
@@ -0,0 +1,24 @@
+package org.snomed.negative_delta;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler always attached, so that allocation rate is
+ * reported alongside throughput.  Takes the usual JMH arguments, eg a benchmark name regex.
+ * 
+ * java -jar target/snomed-deletion-benchmarks.jar DeletionMatch -p deltaSize=10000
+ */
+public class Benchmarks {
+	
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,60 @@
+package org.snomed.negative_delta;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the history index from rows already parsed, as the Full file is loaded.
+ * Each invocation indexes every row, so scores are in whole tables per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComponentIndexBenchmark {
+	
+	@Param({"10000", "250000"})
+	int components;
+	
+	@Param({"1", "8"})
+	int historyDepth;
+	
+	private long[] los;
+	private Rf2Row[] rows;
+	
+	@Setup
+	public void setup() {
+		los = new long[components * historyDepth];
+		rows = new Rf2Row[components * historyDepth];
+		//Rows arrive in file order, which is not grouped by component
+		int idx = 0;
+		for (int release = 0; release < historyDepth; release++) {
+			for (int component = 0; component < components; component++) {
+				los[idx] = Long.parseLong(BenchmarkRows.sctid(component));
+				rows[idx++] = new Rf2Row(BenchmarkRows.conceptRow(component, release), false);
+			}
+		}
+	}
+	
+	@Benchmark
+	public ComponentIndex build() {
+		ComponentIndex index = new ComponentIndex();
+		for (int i = 0; i < rows.length; i++) {
+			index.add(0L, los[i], rows[i]);
+		}
+		return index;
+	}
+}
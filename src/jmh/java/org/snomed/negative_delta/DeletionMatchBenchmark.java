@@ -0,0 +1,69 @@
+package org.snomed.negative_delta;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.snomed.ApplicationException;
+
+/**
+ * FileProcessor.removeDeltaFromFull, matching a negative delta against the Full histories of
+ * the components it names and removing the matched rows, at a range of delta sizes.  Each
+ * invocation works on a fresh copy-on-write copy of the Full, taken outside the measurement.
+ * Scores are in whole deltas per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeletionMatchBenchmark {
+	
+	private static final int COMPONENTS = 200000;
+	private static final int HISTORY_DEPTH = 4;
+	
+	@Param({"100", "10000", "100000"})
+	int deltaSize;
+	
+	private ComponentIndex full;
+	private ComponentIndex deletions;
+	private String[] targetEffectiveTimes;
+	private NegativeDeltaProcessor parent;
+	private FileProcessor processor;
+	
+	@Setup
+	public void setup() throws ApplicationException {
+		full = BenchmarkRows.buildHistories(COMPONENTS, HISTORY_DEPTH);
+		//Delete the latest row of every nth component
+		deletions = new ComponentIndex();
+		int step = COMPONENTS / deltaSize;
+		for (int component = 0; component < COMPONENTS && deletions.size() < deltaSize; component += step) {
+			long lo = Long.parseLong(BenchmarkRows.sctid(component));
+			deletions.add(0L, lo, new Rf2Row(BenchmarkRows.deletionRow(component, HISTORY_DEPTH - 1), true));
+		}
+		targetEffectiveTimes = new String[] { Long.toString(BenchmarkRows.effectiveTime(HISTORY_DEPTH - 1)) };
+		parent = new NegativeDeltaProcessor();
+	}
+	
+	@Setup(Level.Invocation)
+	public void copyFull() {
+		processor = FileProcessor.forLoaded(BenchmarkRows.CONCEPT_FULL, deletions, full, targetEffectiveTimes, parent);
+	}
+	
+	@Benchmark
+	public int removeDeltaFromFull() throws ApplicationException {
+		processor.removeDeltaFromFull();
+		return processor.getRowsRemoved();
+	}
+}
@@ -0,0 +1,73 @@
+package org.snomed.negative_delta;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.snomed.ApplicationException;
+import org.snomed.negative_delta.SnomedConstants.TableType;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * FileProcessor.export writing a whole table to each type of output in turn, through the
+ * writer it uses, encoded to UTF-8 and then discarded.  Scores are in whole tables per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportBenchmark {
+	
+	private static final int COMPONENTS = 100000;
+	private static final int HISTORY_DEPTH = 4;
+	
+	@Param({"FULL", "SNAPSHOT", "DELTA"})
+	TableType tableType;
+	
+	private ComponentIndex full;
+	private FileProcessor processor;
+	//Full, Snapshot, Delta and new state, in the order export takes them
+	private Rf2Writer[] outputs = new Rf2Writer[4];
+	
+	@Setup
+	public void setup() throws ApplicationException {
+		full = BenchmarkRows.buildHistories(COMPONENTS, HISTORY_DEPTH);
+		String[] targetEffectiveTimes = { Long.toString(BenchmarkRows.effectiveTime(HISTORY_DEPTH - 1)) };
+		processor = FileProcessor.forLoaded(BenchmarkRows.CONCEPT_FULL, new ComponentIndex(), full, targetEffectiveTimes, new NegativeDeltaProcessor());
+		Rf2Writer out = new Rf2Writer(ByteStreams.nullOutputStream());
+		switch (tableType) {
+			case FULL :
+				outputs[0] = out;
+				break;
+			case SNAPSHOT :
+				outputs[1] = out;
+				break;
+			case DELTA :
+				outputs[2] = out;
+				break;
+		}
+	}
+	
+	@Benchmark
+	public void export() throws ApplicationException, IOException {
+		processor.export(full, outputs);
+		for (Rf2Writer out : outputs) {
+			if (out != null) {
+				out.flush();
+			}
+		}
+	}
+}
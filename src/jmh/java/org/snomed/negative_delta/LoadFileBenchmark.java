@@ -0,0 +1,71 @@
+package org.snomed.negative_delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.snomed.ApplicationException;
+import org.snomed.negative_delta.ProcessingOptions.RowStorage;
+import org.snomed.util.GlobalUtils;
+
+/**
+ * Loading a Full file from local disk into its history index, for each form of row storage.
+ * Scores are in whole files per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadFileBenchmark {
+	
+	@Param({"HEAP", "MAPPED", "OFFHEAP", "COLUMNAR"})
+	RowStorage storage;
+	
+	@Param({"100000"})
+	int components;
+	
+	@Param({"4"})
+	int historyDepth;
+	
+	private File fullFile;
+	
+	@Setup
+	public void setup() throws IOException, ApplicationException {
+		fullFile = File.createTempFile("sct2_Concept_Full_INT_", ".txt");
+		try (PrintWriter out = GlobalUtils.prepareFileToWrite(fullFile)) {
+			out.print("id\teffectiveTime\tactive\tmoduleId\tdefinitionStatusId" + GlobalUtils.LINE_DELIMITER);
+			for (int release = 0; release < historyDepth; release++) {
+				for (int component = 0; component < components; component++) {
+					out.print(BenchmarkRows.conceptRow(component, release) + GlobalUtils.LINE_DELIMITER);
+				}
+			}
+		}
+	}
+	
+	@TearDown
+	public void tearDown() {
+		fullFile.delete();
+	}
+	
+	@Benchmark
+	public ComponentIndex load() throws ApplicationException {
+		Rf2File file = new Rf2File(new FileRf2Source(fullFile), storage);
+		file.loadFile(false);
+		return file.getComponents();
+	}
+}
@@ -0,0 +1,74 @@
+package org.snomed.negative_delta;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing of a single line into a row, for Full rows and for negative delta rows which
+ * must be reformed before they can be compared.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Rf2RowBenchmark {
+	
+	private static final int LINES = 1024;
+	
+	@Param({"false", "true"})
+	boolean deletion;
+	
+	private String[] lines;
+	private Rf2Row[] rows;
+	
+	@Setup
+	public void setup() {
+		lines = new String[LINES];
+		rows = new Rf2Row[LINES];
+		for (int i = 0; i < LINES; i++) {
+			lines[i] = deletion ? BenchmarkRows.deletionRow(i, i % 10) : BenchmarkRows.conceptRow(i, i % 10);
+			rows[i] = new Rf2Row(lines[i], deletion);
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public void parse(Blackhole blackhole) {
+		for (String line : lines) {
+			blackhole.consume(new Rf2Row(line, deletion));
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public void parseKey(Blackhole blackhole) throws Exception {
+		for (Rf2Row row : rows) {
+			String id = row.getId();
+			blackhole.consume(ComponentIndex.keyHi(id));
+			blackhole.consume(ComponentIndex.keyLo(id));
+		}
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public void fingerprint(Blackhole blackhole) {
+		for (Rf2Row row : rows) {
+			blackhole.consume(row.getFingerprint());
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package org.snomed.negative_delta;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.snomed.ApplicationException;
+import org.snomed.util.GlobalUtils;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Runs NegativeDeltaProcessor end to end against synthetic releases of increasing size, each in 
+ * its own JVM, recording wall time, peak resident memory and rows per second.  Releases are 
+ * generated on first use and kept in the work directory for later runs.  Results are printed
+ * and appended to scale-results.tsv in the work directory, so that runs can be compared over time.
+ * 
+ * Usage: ScaleBenchmark <workDir> [-scales 1000000,10000000,100000000] [-history <n>] [-deltaSize <n>] 
+ *   [-edition <edition>] [-jvm "<jvm options>"] [-- <NegativeDeltaProcessor options>]
+ */
+public class ScaleBenchmark {
+	
+	private static final String RUN_IN_CHILD = "-child";
+	private static final String PEAK_RSS_MARKER = "PEAK_RSS_KB\t";
+	private static final String RESULTS_FILE = "scale-results.tsv";
+	private static final String RESULTS_HEADER = "date\trows\thistory\tdeltaSize\tprocessorOptions\texitCode\twallSeconds\tpeakRssMb\trowsPerSecond";
+	
+	private File workDir;
+	private long[] scales = new long[] { 1000000L, 10000000L, 100000000L };
+	private int history = 4;
+	private int deltaSize = 1000;
+	private String edition = "INT";
+	private List<String> jvmOptions = new ArrayList<String>();
+	private List<String> processorOptions = new ArrayList<String>();
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals(RUN_IN_CHILD)) {
+			runProcessor(Arrays.copyOfRange(args, 1, args.length));
+			return;
+		}
+		if (args.length < 1) {
+			System.out.println("Usage ScaleBenchmark <workDir> [-scales 1000000,10000000,100000000] [-history <n>] [-deltaSize <n>] [-edition <edition>] [-jvm \"<jvm options>\"] [-- <processor options>]");
+			System.exit(-1);
+		}
+		ScaleBenchmark benchmark = new ScaleBenchmark();
+		benchmark.workDir = new File(args[0]);
+		for (int idx = 1; idx < args.length; idx++) {
+			switch (args[idx]) {
+				case "-scales" : 
+					String[] scaleStrs = args[++idx].split(",");
+					benchmark.scales = new long[scaleStrs.length];
+					for (int i = 0; i < scaleStrs.length; i++) {
+						benchmark.scales[i] = Long.parseLong(scaleStrs[i]);
+					}
+					break;
+				case "-history" : benchmark.history = Integer.parseInt(args[++idx]); break;
+				case "-deltaSize" : benchmark.deltaSize = Integer.parseInt(args[++idx]); break;
+				case "-edition" : benchmark.edition = args[++idx]; break;
+				case "-jvm" : benchmark.jvmOptions.addAll(Arrays.asList(args[++idx].trim().split("\\s+"))); break;
+				case "--" :
+					benchmark.processorOptions.addAll(Arrays.asList(args).subList(idx + 1, args.length));
+					idx = args.length;
+					break;
+				default : throw new ApplicationException("Unrecognised option: " + args[idx]);
+			}
+		}
+		benchmark.run();
+	}
+	
+	private void run() throws IOException, InterruptedException {
+		workDir.mkdirs();
+		List<String> results = new ArrayList<String>();
+		for (long rows : scales) {
+			results.add(runScale(rows));
+		}
+		GlobalUtils.print("\n" + RESULTS_HEADER);
+		for (String result : results) {
+			GlobalUtils.print(result);
+		}
+	}
+	
+	private String runScale(long rows) throws IOException, InterruptedException {
+		File scaleDir = new File(workDir, "rows-" + rows + "-history-" + history + "-delta-" + deltaSize + "-" + edition);
+		SyntheticRelease generator = new SyntheticRelease();
+		generator.setRows(rows);
+		generator.setHistory(history);
+		generator.setDeltaSize(deltaSize);
+		generator.setEdition(edition);
+		File releaseArchive = generator.getReleaseArchive(scaleDir);
+		File negativeDeltaArchive = generator.getNegativeDeltaArchive(scaleDir);
+		if (!releaseArchive.exists() || !negativeDeltaArchive.exists()) {
+			generator.generate(scaleDir);
+		}
+		
+		File runDir = new File(scaleDir, "run");
+		GlobalUtils.delete(runDir);
+		runDir.mkdirs();
+		File log = new File(scaleDir, "run.log");
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+		command.addAll(jvmOptions);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ScaleBenchmark.class.getName());
+		command.add(RUN_IN_CHILD);
+		command.add(releaseArchive.getAbsolutePath());
+		command.add(negativeDeltaArchive.getAbsolutePath());
+		command.add(generator.getReleaseDate());
+		command.add(edition);
+		command.addAll(processorOptions);
+		GlobalUtils.print("Running " + rows + " rows, logging to " + log);
+		
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(command)
+				.directory(runDir)
+				.redirectErrorStream(true)
+				.redirectOutput(log)
+				.start();
+		int exitCode = process.waitFor();
+		double wallSeconds = (System.nanoTime() - start) / 1e9;
+		//Outputs are not needed, and may be large
+		GlobalUtils.delete(runDir);
+		
+		long peakRssKb = readPeakRss(log);
+		long fullRows = generator.getFullRowCount();
+		String result = String.format("%tF %<tT\t%d\t%d\t%d\t%s\t%d\t%.1f\t%s\t%.0f", new Date(), fullRows, history, deltaSize, 
+				processorOptions.isEmpty() ? "-" : Joiner.on(' ').join(processorOptions), exitCode, wallSeconds, 
+				peakRssKb < 0 ? "n/a" : Long.toString(peakRssKb / 1024), fullRows / wallSeconds);
+		GlobalUtils.print(result);
+		appendResult(result);
+		return result;
+	}
+	
+	private void appendResult(String result) throws IOException {
+		File resultsFile = new File(workDir, RESULTS_FILE);
+		boolean isNew = !resultsFile.exists();
+		try (PrintWriter out = new PrintWriter(new FileWriter(resultsFile, true))) {
+			if (isNew) {
+				out.println(RESULTS_HEADER);
+			}
+			out.println(result);
+		}
+	}
+	
+	private static long readPeakRss(File log) throws IOException {
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(PEAK_RSS_MARKER)) {
+					return Long.parseLong(line.substring(PEAK_RSS_MARKER.length()).trim());
+				}
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Runs in the child JVM, reporting the peak resident set size once processing is complete.
+	 * That is only available on Linux, elsewhere it is reported as n/a.
+	 */
+	private static void runProcessor(String[] args) {
+		int exitCode = 0;
+		try {
+			NegativeDeltaProcessor.main(args);
+		} catch (Throwable t) {
+			t.printStackTrace();
+			exitCode = 1;
+		}
+		File status = new File("/proc/self/status");
+		if (status.canRead()) {
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(status), StandardCharsets.US_ASCII))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					//eg VmHWM:	  123456 kB
+					if (line.startsWith("VmHWM:")) {
+						System.out.println("\n" + PEAK_RSS_MARKER + line.substring("VmHWM:".length()).replace("kB", "").trim());
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("Unable to read peak memory: " + e.getMessage());
+			}
+		}
+		System.exit(exitCode);
+	}
+}
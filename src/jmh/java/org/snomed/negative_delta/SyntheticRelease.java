@@ -0,0 +1,356 @@
+package org.snomed.negative_delta;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.snomed.ApplicationException;
+import org.snomed.util.GlobalUtils;
+
+/**
+ * Writes a synthetic release archive, holding a Full file for every table in SnomedTable.SnomedTables,
+ * and a matching negative delta archive, using the same headers and filename templates as a real 
+ * release.  Content is derived from a hash of the table, component and release, so the same 
+ * settings always produce the same archives, and a deletion row can be regenerated exactly from 
+ * the Full row it deletes.
+ * 
+ * Usage: SyntheticRelease <outputDir> [-rows <n>] [-history <n>] [-deltaSize <n>] [-edition <edition>] [-date <yyyymmdd>]
+ */
+public class SyntheticRelease implements SnomedConstants {
+	
+	//Approximate share of the rows of a release held by each table.  Tables not listed are small
+	private static final Map<String, Double> TABLE_WEIGHTS = new HashMap<String, Double>();
+	static {
+		TABLE_WEIGHTS.put("concept", 0.08);
+		TABLE_WEIGHTS.put("description", 0.20);
+		TABLE_WEIGHTS.put("textdefinition", 0.01);
+		TABLE_WEIGHTS.put("langrefset", 0.30);
+		TABLE_WEIGHTS.put("relationship", 0.25);
+		TABLE_WEIGHTS.put("stated_relationship", 0.04);
+		TABLE_WEIGHTS.put("simplerefset", 0.02);
+		TABLE_WEIGHTS.put("associationrefset", 0.02);
+		TABLE_WEIGHTS.put("attributevaluerefset", 0.03);
+		TABLE_WEIGHTS.put("extendedmaprefset", 0.03);
+		TABLE_WEIGHTS.put("simplemaprefset", 0.02);
+	}
+	private static final double MINOR_TABLE_WEIGHT = 0.0001;
+	private static final String IDENTIFIER_TABLE = "identifier";
+	private static final String MODULE = "900000000000207008";
+	
+	private long rows = 1000000;
+	private int history = 4;
+	private int deltaSize = 1000;
+	private String edition = "INT";
+	private String releaseDate = "20170731";
+	
+	//Components in each table, so that references can be made to components which exist
+	private final Map<String, Long> componentCounts = new HashMap<String, Long>();
+	private long fullRowsWritten = 0;
+	private long deletionRowsWritten = 0;
+	
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.out.println("Usage SyntheticRelease <outputDir> [-rows <n>] [-history <n>] [-deltaSize <n>] [-edition <edition>] [-date <yyyymmdd>]");
+			System.exit(-1);
+		}
+		SyntheticRelease generator = new SyntheticRelease();
+		for (int idx = 1; idx < args.length; idx++) {
+			switch (args[idx]) {
+				case "-rows" : generator.setRows(Long.parseLong(args[++idx])); break;
+				case "-history" : generator.setHistory(Integer.parseInt(args[++idx])); break;
+				case "-deltaSize" : generator.setDeltaSize(Integer.parseInt(args[++idx])); break;
+				case "-edition" : generator.setEdition(args[++idx]); break;
+				case "-date" : generator.setReleaseDate(args[++idx]); break;
+				default : throw new ApplicationException("Unrecognised option: " + args[idx]);
+			}
+		}
+		generator.generate(new File(args[0]));
+	}
+	
+	/**
+	 * Total number of Full rows, shared between the tables by their usual proportions
+	 */
+	public void setRows(long rows) {
+		this.rows = rows;
+	}
+	
+	/**
+	 * Number of releases in which each component has a row
+	 */
+	public void setHistory(int history) {
+		this.history = history;
+	}
+	
+	/**
+	 * Number of rows deleted from each table by the negative delta
+	 */
+	public void setDeltaSize(int deltaSize) {
+		this.deltaSize = deltaSize;
+	}
+	
+	public void setEdition(String edition) {
+		this.edition = edition;
+	}
+	
+	/**
+	 * Date of the latest release, which is also the target effectiveTime for the negative delta
+	 */
+	public void setReleaseDate(String releaseDate) {
+		this.releaseDate = releaseDate;
+	}
+	
+	public String getReleaseDate() {
+		return releaseDate;
+	}
+	
+	public String getEdition() {
+		return edition;
+	}
+	
+	public File getReleaseArchive(File outputDir) {
+		return new File(outputDir, "SnomedCT_Synthetic_" + edition + "_" + releaseDate + ".zip");
+	}
+	
+	public File getNegativeDeltaArchive(File outputDir) {
+		return new File(outputDir, "SnomedCT_SyntheticNegativeDelta_" + edition + "_" + releaseDate + ".zip");
+	}
+	
+	/**
+	 * @return the number of Full rows the settings produce.  Tables hold whole component histories,
+	 * so this can fall slightly short of the number requested.
+	 */
+	public long getFullRowCount() {
+		planTables();
+		long fullRows = 0;
+		for (SnomedTable table : SnomedTable.SnomedTables) {
+			if (!table.getTableName().equals(IDENTIFIER_TABLE)) {
+				fullRows += componentCounts.get(table.getTableName()) * history;
+			}
+		}
+		return fullRows;
+	}
+	
+	private void planTables() {
+		double totalWeight = 0;
+		for (SnomedTable table : SnomedTable.SnomedTables) {
+			totalWeight += getWeight(table);
+		}
+		for (SnomedTable table : SnomedTable.SnomedTables) {
+			long tableRows = (long)(rows * getWeight(table) / totalWeight);
+			componentCounts.put(table.getTableName(), Math.max(1, tableRows / history));
+		}
+	}
+	
+	public void generate(File outputDir) throws IOException {
+		outputDir.mkdirs();
+		File releaseArchive = getReleaseArchive(outputDir);
+		File negativeDeltaArchive = getNegativeDeltaArchive(outputDir);
+		GlobalUtils.print("Generating " + rows + " rows with history of " + history + " into " + releaseArchive);
+		planTables();
+		try (ZipOutputStream release = openArchive(releaseArchive);
+				ZipOutputStream negativeDelta = openArchive(negativeDeltaArchive)) {
+			String releaseRoot = stripExtension(releaseArchive) + "/";
+			String negativeDeltaRoot = stripExtension(negativeDeltaArchive) + "/";
+			for (SnomedTable table : SnomedTable.SnomedTables) {
+				release.putNextEntry(new ZipEntry(releaseRoot + table.getFilename(edition, "en", releaseDate, TableType.FULL)));
+				negativeDelta.putNextEntry(new ZipEntry(negativeDeltaRoot + table.getFilename(edition, "en", releaseDate, TableType.DELTA)));
+				//Writers are flushed but not closed, as that would close the archive
+				Writer fullOut = new OutputStreamWriter(new UnclosedOutputStream(release), StandardCharsets.UTF_8);
+				Writer deltaOut = new OutputStreamWriter(new UnclosedOutputStream(negativeDelta), StandardCharsets.UTF_8);
+				writeTable(table, fullOut, deltaOut);
+				fullOut.flush();
+				deltaOut.flush();
+				release.closeEntry();
+				negativeDelta.closeEntry();
+			}
+		}
+		GlobalUtils.print("Generated " + fullRowsWritten + " Full rows and " + deletionRowsWritten + " negative delta rows");
+	}
+	
+	private void writeTable(SnomedTable table, Writer fullOut, Writer deltaOut) throws IOException {
+		String[] columns = table.getFileHeader().split(FIELD_DELIMITER);
+		fullOut.write(table.getFileHeader() + GlobalUtils.LINE_DELIMITER);
+		deltaOut.write(getDeletionHeader(columns) + GlobalUtils.LINE_DELIMITER);
+		//Identifier files do not start with id and effectiveTime, and are empty in practice
+		if (table.getTableName().equals(IDENTIFIER_TABLE)) {
+			return;
+		}
+		long components = componentCounts.get(table.getTableName());
+		//Delete the latest row of every nth component
+		long deletionStride = deltaSize <= 0 ? Long.MAX_VALUE : Math.max(1, components / deltaSize);
+		int deletions = 0;
+		String[] fields = new String[columns.length];
+		for (long component = 0; component < components; component++) {
+			String id = getId(table, component);
+			for (int release = 0; release < history; release++) {
+				fillRow(table, columns, fields, id, component, release);
+				fullOut.write(join(fields, 0, fields.length) + GlobalUtils.LINE_DELIMITER);
+				fullRowsWritten++;
+			}
+			if (component % deletionStride == 0 && deletions < deltaSize) {
+				//Deletion rows carry deletionEffectiveTime and deletionActive either side of the active field
+				fillRow(table, columns, fields, id, component, history - 1);
+				deltaOut.write(join(fields, 0, 2) + FIELD_DELIMITER + releaseDate + FIELD_DELIMITER + fields[2] 
+						+ FIELD_DELIMITER + ACTIVE + FIELD_DELIMITER + join(fields, 3, fields.length) + GlobalUtils.LINE_DELIMITER);
+				deletions++;
+				deletionRowsWritten++;
+			}
+		}
+	}
+	
+	private void fillRow(SnomedTable table, String[] columns, String[] fields, String id, long component, int release) {
+		fields[IDX_ID] = id;
+		fields[IDX_EFFECTIVETIME] = getEffectiveTime(release);
+		fields[IDX_ACTIVE] = hash(table, component, release, IDX_ACTIVE) % 5 == 0 ? "0" : ACTIVE;
+		fields[IDX_MODULEID] = MODULE;
+		for (int col = IDX_MODULEID + 1; col < columns.length; col++) {
+			fields[col] = getValue(table, columns[col], component, release, col);
+		}
+	}
+	
+	private String getValue(SnomedTable table, String column, long component, int release, int col) {
+		long hash = hash(table, component, release, col);
+		switch (column) {
+			case "languageCode" : return "en";
+			case "term" : return "Synthetic " + table.getTableName() + " " + component + " version " + release;
+			case "relationshipGroup" :
+			case "mapGroup" :
+			case "mapPriority" :
+			case "attributeOrder" : return Long.toString(hash % 4);
+			case "descriptionLength" : return Long.toString(255 + hash % 4096);
+			case "mapRule" : return "TRUE";
+			case "mapAdvice" : return "ALWAYS X" + (hash % 1000);
+			case "mapTarget" : return "X" + (hash % 1000);
+			case "sourceEffectiveTime" :
+			case "targetEffectiveTime" : return getEffectiveTime(release);
+			case "conceptId" :
+			case "sourceId" :
+			case "destinationId" :
+			case "targetComponentId" :
+			case "valueId" : return getReference("concept", hash);
+			case "referencedComponentId" :
+				return getReference(table.getTableName().equals("langrefset") ? "description" : "concept", hash);
+			default : 
+				//Other identifiers, such as types and refsets, are metadata concepts
+				return getReference("concept", hash % 1000);
+		}
+	}
+	
+	private String getReference(String tableName, long hash) {
+		Long components = componentCounts.get(tableName);
+		return getSctid(tableName, hash % components);
+	}
+	
+	private String getId(SnomedTable table, long component) {
+		if (table.getFilenamePart().startsWith("der2_")) {
+			long hash = hash(table, component, -1, -1);
+			return new UUID(hash | 1L, mix(hash)).toString();
+		}
+		return getSctid(table.getTableName(), component);
+	}
+	
+	//Partition identifiers as for a real release, with a separate range of item identifiers for each table
+	private String getSctid(String tableName, long component) {
+		int partition = tableName.contains("relationship") ? 2 : tableName.equals("concept") ? 0 : 1;
+		long itemId = (tableIndex(tableName) + 1) * 1000000000L + component;
+		return Long.toString(itemId * 1000L + partition * 10L);
+	}
+	
+	private static int tableIndex(String tableName) {
+		for (int i = 0; i < SnomedTable.SnomedTables.size(); i++) {
+			if (SnomedTable.SnomedTables.get(i).getTableName().equals(tableName)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown table " + tableName);
+	}
+	
+	//Releases every six months, the last of them on the release date
+	private String getEffectiveTime(int release) {
+		int monthsBefore = 6 * (history - 1 - release);
+		if (monthsBefore == 0) {
+			return releaseDate;
+		}
+		int months = Integer.parseInt(releaseDate.substring(0, 4)) * 12 + Integer.parseInt(releaseDate.substring(4, 6)) - 1 - monthsBefore;
+		return String.format("%04d%02d01", months / 12, months % 12 + 1);
+	}
+	
+	private static String getDeletionHeader(String[] columns) {
+		if (columns[0].equals("id")) {
+			return join(columns, 0, 2) + FIELD_DELIMITER + "deletionEffectiveTime" + FIELD_DELIMITER + columns[2] 
+					+ FIELD_DELIMITER + "deletionActive" + FIELD_DELIMITER + join(columns, 3, columns.length);
+		}
+		return join(columns, 0, columns.length);
+	}
+	
+	private static String join(String[] fields, int from, int to) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			if (i > from) {
+				sb.append(FIELD_DELIMITER);
+			}
+			sb.append(fields[i]);
+		}
+		return sb.toString();
+	}
+	
+	private static long hash(SnomedTable table, long component, int release, int col) {
+		long hash = mix(table.getTableName().hashCode());
+		hash = mix(hash ^ component);
+		hash = mix(hash ^ release);
+		return mix(hash ^ col) & Long.MAX_VALUE;
+	}
+	
+	//SplitMix64 finaliser
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+	
+	private static double getWeight(SnomedTable table) {
+		Double weight = TABLE_WEIGHTS.get(table.getTableName());
+		return weight == null ? MINOR_TABLE_WEIGHT : weight;
+	}
+	
+	private static ZipOutputStream openArchive(File archive) throws IOException {
+		ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive), 1024 * 1024));
+		//Generation time is dominated by compression, so favour speed
+		zos.setLevel(Deflater.BEST_SPEED);
+		return zos;
+	}
+	
+	private static String stripExtension(File file) {
+		String name = file.getName();
+		return name.substring(0, name.lastIndexOf('.'));
+	}
+	
+	//Lets a writer be wrapped around one entry of an archive without closing the archive
+	private static class UnclosedOutputStream extends FilterOutputStream {
+		UnclosedOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+		
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package org.snomed.negative_delta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.snomed.ApplicationException;
+import org.snomed.negative_delta.ProcessingOptions.RowStorage;
+
+/**
+ * Reads an RF2 file from any source as bytes, without decoding lines to Strings.  As with
+ * MappedRf2Reader only the component key and effectiveTime are decoded as each line is visited.
+ * Rows are copied into a RowArena, so that unlike mapped rows they may come from an archive
+ * entry, and are held outside the heap all the same.  With -storage columnar they are instead
+ * split into the columns of a ColumnarTable laid out from the file's header.
+ */
+public class ArenaRf2Reader implements Rf2Reader, SnomedConstants {
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final byte TAB = '\t';
+	private static final byte LF = '\n';
+	private static final byte CR = '\r';
+
+	private final Rf2Source source;
+	private final InputStream in;
+	private final boolean columnar;
+	private RowStore store;
+	private byte[] bytes = new byte[BUFFER_SIZE];
+	private ByteBuffer buffer = ByteBuffer.wrap(bytes);
+	private int position = 0;
+	private int filled = 0;
+	private boolean endOfStream = false;
+	private boolean headerSkipped = false;
+	//Rows are added to the store by the caller, see deferRows()
+	private boolean rowsDeferred = false;
+
+	//State of the current line
+	private int lineStart;
+	private int lineLength;
+	private long hi;
+	private long lo;
+	private long effectiveTime;
+
+	public ArenaRf2Reader(Rf2Source source) throws ApplicationException {
+		this(source, RowStorage.OFFHEAP);
+	}
+
+	public ArenaRf2Reader(Rf2Source source, RowStorage storage) throws ApplicationException {
+		this.source = source;
+		columnar = storage == RowStorage.COLUMNAR;
+		if (!columnar) {
+			store = new RowArena();
+		}
+		try {
+			in = source.openStream();
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to open " + source, e);
+		}
+	}
+
+	@Override
+	public boolean next() throws ApplicationException {
+		try {
+			while (true) {
+				int end = indexOf(LF, position, filled);
+				if (end < 0) {
+					if (endOfStream) {
+						if (position >= filled) {
+							return false;
+						}
+						//Final line with no line ending
+						end = filled;
+					} else {
+						fill();
+						continue;
+					}
+				}
+				lineStart = position;
+				position = end + 1;
+				if (end > lineStart && bytes[end - 1] == CR) {
+					end--;
+				}
+				lineLength = end - lineStart;
+				if (!headerSkipped) {
+					headerSkipped = true;
+					if (columnar) {
+						store = new ColumnarTable(getLineAsString());
+					}
+					continue;
+				}
+				if (lineLength > Rf2File.MIN_LINE_LENGTH) {
+					decodeKeyFields();
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to read " + source, e);
+		}
+	}
+
+	//Moves any partial line to the start of the buffer, growing it if the line fills it, and reads more after it
+	private void fill() throws IOException {
+		int partial = filled - position;
+		if (partial == bytes.length) {
+			bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			buffer = ByteBuffer.wrap(bytes);
+		} else {
+			System.arraycopy(bytes, position, bytes, 0, partial);
+		}
+		position = 0;
+		filled = partial;
+		int read = in.read(bytes, filled, bytes.length - filled);
+		if (read < 0) {
+			endOfStream = true;
+		} else {
+			filled += read;
+		}
+	}
+
+	private void decodeKeyFields() throws ApplicationException {
+		int lineEnd = lineStart + lineLength;
+		int idEnd = indexOf(TAB, lineStart, lineEnd);
+		int effectiveTimeEnd = idEnd < 0 ? -1 : indexOf(TAB, idEnd + 1, lineEnd);
+		if (idEnd < 0 || effectiveTimeEnd < 0) {
+			throw new ApplicationException("Malformed row in " + source.getName() + ": " + getLineAsString());
+		}
+		hi = ComponentIndex.keyHi(buffer, lineStart, idEnd - lineStart);
+		lo = ComponentIndex.keyLo(buffer, lineStart, idEnd - lineStart);
+		effectiveTime = 0;
+		for (int i = idEnd + 1; i < effectiveTimeEnd; i++) {
+			int digit = bytes[i] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new ApplicationException("Invalid effectiveTime in " + source.getName() + ": " + getLineAsString());
+			}
+			effectiveTime = effectiveTime * 10 + digit;
+		}
+	}
+
+	private int indexOf(byte target, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == target) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return a row whose bytes have been copied into the arena or table
+	 */
+	@Override
+	public Rf2Row getRow() {
+		return store.add(buffer, lineStart, lineLength, effectiveTime);
+	}
+
+	@Override
+	public void writeLineTo(Rf2Writer out) throws IOException {
+		out.writeLine(buffer, lineStart, lineLength);
+	}
+
+	/**
+	 * A ColumnarTable must not have rows read from it while another thread adds to it, so 
+	 * a reading stage which runs ahead of the caller cannot add the rows itself.  Once deferred, 
+	 * getRow is not called.  Each line is instead copied out with copyLineTo and added to the 
+	 * store by the caller, which also trims the store once every line has been added.
+	 * @return false if rows are held in a RowArena, which needs no such care
+	 */
+	boolean deferRows() {
+		rowsDeferred = columnar;
+		return rowsDeferred;
+	}
+
+	/**
+	 * @return the store rows are to be added to, known once the header has been read
+	 */
+	RowStore getStore() {
+		return store;
+	}
+
+	int getLineLength() {
+		return lineLength;
+	}
+
+	void copyLineTo(byte[] into, int offset) {
+		System.arraycopy(bytes, lineStart, into, offset, lineLength);
+	}
+
+	@Override
+	public long getHi() {
+		return hi;
+	}
+
+	@Override
+	public long getLo() {
+		return lo;
+	}
+
+	@Override
+	public long getEffectiveTime() {
+		return effectiveTime;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (store != null && !rowsDeferred) {
+			store.trim();
+		}
+		in.close();
+	}
+
+	private String getLineAsString() {
+		return SliceRf2Row.decode(buffer, lineStart, lineLength);
+	}
+}
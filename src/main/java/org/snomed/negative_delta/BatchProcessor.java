@@ -0,0 +1,167 @@
+package org.snomed.negative_delta;
+
+import static org.snomed.util.GlobalUtils.print;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.snomed.ApplicationException;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Applies each negative delta listed in a manifest to the same release, producing the
+ * SnomedCT_<edition>_<date> archives of every job in a single process.  The release is
+ * extracted and parsed once, and each job works on a copy-on-write copy of it, so only
+ * the first job pays for the parse and no job can see the rows removed by another.
+ *
+ * Each line of the manifest holds the negative delta archive, the target effectiveTime(s)
+ * and the edition, separated by tabs or spaces, as they would be passed to
+ * NegativeDeltaProcessor.  Blank lines and lines starting # are ignored.
+ */
+public class BatchProcessor {
+
+	static class BatchJob {
+		File negativeDeltaArchive;
+		String[] targetEffectiveTimes;
+		String edition;
+
+		@Override
+		public String toString() {
+			return edition + " " + Joiner.on(',').join(targetEffectiveTimes) + " from " + negativeDeltaArchive.getName();
+		}
+	}
+
+	public static void main(String args[]) throws Exception {
+		if (args.length < 2) {
+			print ("Usage BatchProcessor <originalArchive> <manifest>" + ProcessingOptions.USAGE);
+			System.exit(-1);
+		}
+		File releaseArchive = new File(args[0]);
+		if (!releaseArchive.canRead()) {
+			print ("Did not find valid release archive - " + args[0]);
+			System.exit(-1);
+		}
+		List<BatchJob> jobs = null;
+		ProcessingOptions options = null;
+		try {
+			jobs = readManifest(new File(args[1]));
+			options = ProcessingOptions.parse(args, 2);
+			checkOptions(options);
+		} catch (ApplicationException e) {
+			print (e.getMessage());
+			System.exit(-1);
+		}
+
+		long startTime = System.currentTimeMillis();
+		SharedRelease release = new SharedRelease(releaseArchive);
+		List<String> failures = new ArrayList<String>();
+		try {
+			release.load(options);
+			print ("Release parsed in " + (System.currentTimeMillis() - startTime) / 1000 + "s, starting " + jobs.size() + " jobs");
+			for (int i = 0; i < jobs.size(); i++) {
+				BatchJob job = jobs.get(i);
+				print ("\nJob " + (i + 1) + " of " + jobs.size() + ": " + job);
+				NegativeDeltaProcessor app = new NegativeDeltaProcessor(release,
+						job.negativeDeltaArchive,
+						job.targetEffectiveTimes,
+						job.edition,
+						options);
+				app.reportFile = forJob(options.getReportFile(), job);
+				app.referenceReport = forJob(options.getReferenceReport(), job);
+				try {
+					app.prepareOutputLocations();
+					app.run();
+				} catch (ApplicationException | RuntimeException e) {
+					//The release is still intact, so carry on with the remaining jobs
+					print ("Job " + (i + 1) + " (" + job + ") failed: " + e.getMessage());
+					failures.add(job.toString());
+				} finally {
+					app.writeReport();
+					app.cleanUp();
+				}
+			}
+		} finally {
+			release.close();
+			print ("\nBatch of " + jobs.size() + " jobs took " + (System.currentTimeMillis() - startTime) / 1000 + "s");
+		}
+		if (!failures.isEmpty()) {
+			throw new ApplicationException(failures.size() + " of " + jobs.size() + " jobs failed: " + failures);
+		}
+	}
+
+	static List<BatchJob> readManifest(File manifest) throws ApplicationException {
+		List<BatchJob> jobs = new ArrayList<BatchJob>();
+		try (BufferedReader reader = Files.newBufferedReader(manifest.toPath(), StandardCharsets.UTF_8)) {
+			int lineNumber = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineNumber++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				if (fields.length != 3) {
+					throw new ApplicationException("Line " + lineNumber + " of " + manifest + " should hold <negativeDeltaArchive> <targetEffectiveTime> <edition>, found: " + line);
+				}
+				BatchJob job = new BatchJob();
+				job.negativeDeltaArchive = new File(fields[0]);
+				if (!job.negativeDeltaArchive.canRead()) {
+					throw new ApplicationException("Line " + lineNumber + " of " + manifest + ": did not find valid negative delta archive - " + fields[0]);
+				}
+				job.targetEffectiveTimes = fields[1].split(",");
+				for (String effectiveTime : job.targetEffectiveTimes) {
+					if (!effectiveTime.matches("\\d{8}")) {
+						throw new ApplicationException("Line " + lineNumber + " of " + manifest + ": unexpected effectiveTime " + effectiveTime);
+					}
+				}
+				job.edition = fields[2];
+				jobs.add(job);
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to read manifest " + manifest, e);
+		}
+		if (jobs.isEmpty()) {
+			throw new ApplicationException("No jobs found in manifest " + manifest);
+		}
+		return jobs;
+	}
+
+	//Only whole tables parsed up front can be shared
+	private static void checkOptions(ProcessingOptions options) throws ApplicationException {
+		if (options.isPartitioned()) {
+			throw new ApplicationException("-partitions reads each table afresh, so cannot be used in a batch");
+		}
+		if (options.isSnapshotOnly() || options.isSelective()) {
+			throw new ApplicationException("-snapshotOnly and -selective stream each table afresh, so cannot be used in a batch");
+		}
+		if (options.isPreview()) {
+			throw new ApplicationException("-preview does not parse the release, so has nothing to share in a batch");
+		}
+		if (options.getImageLocation() != null) {
+			throw new ApplicationException("-image is not needed in a batch, as the release is only parsed once");
+		}
+	}
+
+	//One report per job, named after the job's edition and date as its archives are
+	private static File forJob(File reportFile, BatchJob job) {
+		if (reportFile == null) {
+			return null;
+		}
+		String name = reportFile.getName();
+		int extension = name.lastIndexOf('.');
+		long maxEffectiveTime = 0;
+		for (String effectiveTime : job.targetEffectiveTimes) {
+			maxEffectiveTime = Math.max(maxEffectiveTime, Long.parseLong(effectiveTime));
+		}
+		String suffix = "_" + job.edition + "_" + maxEffectiveTime;
+		name = extension < 0 ? name + suffix : name.substring(0, extension) + suffix + name.substring(extension);
+		return new File(reportFile.getParentFile(), name);
+	}
+}
@@ -0,0 +1,55 @@
+package org.snomed.negative_delta;
+
+import java.io.IOException;
+
+/**
+ * A row held in the columns of a ColumnarTable, whose line is only rebuilt when it is
+ * needed for output or comparison.
+ */
+public class ColumnarRf2Row extends Rf2Row {
+
+	private final ColumnarTable table;
+	private final int index;
+
+	ColumnarRf2Row(ColumnarTable table, int index, long effectiveTime) {
+		super(effectiveTime);
+		this.table = table;
+		this.index = index;
+	}
+
+	@Override
+	String getId() {
+		return table.getField(index, 0);
+	}
+
+	@Override
+	String getField(int position) {
+		return position < table.getColumnCount() ? table.getField(index, position) : "";
+	}
+
+	@Override
+	long getSctidField(int position) {
+		return position < table.getColumnCount() ? table.getSctid(index, position) : -1;
+	}
+
+	@Override
+	public long getFingerprint() {
+		ColumnarTable.Line line = table.rebuild(index);
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < line.length; i++) {
+			hash = (hash ^ (line.bytes[i] & 0xFF)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	@Override
+	public void writeTo(Rf2Writer out) throws IOException {
+		ColumnarTable.Line line = table.rebuild(index);
+		out.writeLine(line.bytes, 0, line.length);
+	}
+
+	@Override
+	public String toString() {
+		return table.rebuild(index).toString();
+	}
+}
@@ -0,0 +1,536 @@
+package org.snomed.negative_delta;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the rows of one RF2 file column by column, laid out from the file's header, rather than
+ * as a String per row.  Most columns only ever hold a handful of values - effectiveTime, active,
+ * moduleId, typeId, refsetId, acceptabilityId and the like - so each column starts out as 16 bit
+ * codes into a dictionary of its values, and only falls back to holding its bytes per row if it
+ * turns out to have too many values.  Identifier columns are held in long arrays, as SCTIDs or
+ * as the two halves of a UUID.  Lines are only rebuilt when rows are output or compared.
+ *
+ * Rows are added by a single reader, after which the table may be read from any thread.
+ */
+class ColumnarTable implements RowStore, SnomedConstants {
+
+	private static final byte TAB = '\t';
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final String ID = "id";
+
+	private static final ThreadLocal<Line> LINES = new ThreadLocal<Line>() {
+		@Override
+		protected Line initialValue() {
+			return new Line();
+		}
+	};
+
+	private final Column[] columns;
+	private final int[] fieldStarts;
+	private final int[] fieldEnds;
+	private int size = 0;
+	private int capacity = INITIAL_CAPACITY;
+
+	ColumnarTable(String header) {
+		String[] names = header.split(FIELD_DELIMITER, -1);
+		columns = new Column[names.length];
+		for (int i = 0; i < names.length; i++) {
+			columns[i] = isIdentifier(names[i]) ? new IdentifierColumn(capacity) : new DictionaryColumn(capacity);
+		}
+		fieldStarts = new int[names.length];
+		fieldEnds = new int[names.length];
+	}
+
+	private static boolean isIdentifier(String name) {
+		if (ID.equals(name)) {
+			return true;
+		}
+		for (String column : ReferenceIndex.REFERENCE_COLUMNS) {
+			if (column.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Rf2Row add(ByteBuffer source, int offset, int length, long effectiveTime) {
+		int end = offset + length;
+		int fields = 0;
+		int fieldStart = offset;
+		for (int i = offset; i <= end && fields <= columns.length; i++) {
+			if (i == end || source.get(i) == TAB) {
+				if (fields < columns.length) {
+					fieldStarts[fields] = fieldStart;
+					fieldEnds[fields] = i;
+				}
+				fields++;
+				fieldStart = i + 1;
+			}
+		}
+		if (fields != columns.length) {
+			//Does not fit the header, so is kept as it is
+			byte[] copy = new byte[length];
+			for (int i = 0; i < length; i++) {
+				copy[i] = source.get(offset + i);
+			}
+			return new SliceRf2Row(ByteBuffer.wrap(copy), 0, length, effectiveTime);
+		}
+		if (size == capacity) {
+			resize(capacity * 2);
+		}
+		for (int c = 0; c < columns.length; c++) {
+			columns[c].set(size, source, fieldStarts[c], fieldEnds[c]);
+		}
+		return new ColumnarRf2Row(this, size++, effectiveTime);
+	}
+
+	@Override
+	public void trim() {
+		resize(Math.max(size, 1));
+		for (Column column : columns) {
+			column.trim();
+		}
+	}
+
+	private void resize(int newCapacity) {
+		for (Column column : columns) {
+			column.resize(newCapacity);
+		}
+		capacity = newCapacity;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the row rebuilt as UTF-8 bytes, in a buffer which is reused by the next call on the same thread
+	 */
+	Line rebuild(int row) {
+		Line line = LINES.get();
+		line.length = 0;
+		for (int c = 0; c < columns.length; c++) {
+			if (c > 0) {
+				line.put(TAB);
+			}
+			columns[c].get(row, line);
+		}
+		return line;
+	}
+
+	String getField(int row, int column) {
+		Line line = LINES.get();
+		line.length = 0;
+		columns[column].get(row, line);
+		return line.toString();
+	}
+
+	int getColumnCount() {
+		return columns.length;
+	}
+
+	/**
+	 * @return the value as an SCTID, read straight from an identifier column, or -1 if it is not one
+	 */
+	long getSctid(int row, int column) {
+		return columns[column].getSctid(row);
+	}
+
+	/**
+	 * A growable buffer of UTF-8 bytes into which rows are rebuilt
+	 */
+	static class Line {
+		byte[] bytes = new byte[1024];
+		int length;
+
+		private void ensure(int extra) {
+			if (length + extra > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+			}
+		}
+
+		void put(byte b) {
+			ensure(1);
+			bytes[length++] = b;
+		}
+
+		void put(byte[] source, int offset, int count) {
+			ensure(count);
+			System.arraycopy(source, offset, bytes, length, count);
+			length += count;
+		}
+
+		@Override
+		public String toString() {
+			return SliceRf2Row.decode(ByteBuffer.wrap(bytes), 0, length);
+		}
+	}
+
+	private static abstract class Column {
+		abstract void set(int row, ByteBuffer source, int from, int to);
+
+		abstract void get(int row, Line line);
+
+		abstract void resize(int capacity);
+
+		void trim() {
+		}
+
+		//Parsed from the value's bytes, for columns which do not already hold it as a number
+		long getSctid(int row) {
+			Line line = LINES.get();
+			line.length = 0;
+			get(row, line);
+			if (line.length == 0 || line.length > Rf2Row.MAX_SCTID_LENGTH) {
+				return -1;
+			}
+			long sctid = 0;
+			for (int i = 0; i < line.length; i++) {
+				byte b = line.bytes[i];
+				if (b < '0' || b > '9') {
+					return -1;
+				}
+				sctid = sctid * 10 + (b - '0');
+			}
+			return sctid;
+		}
+	}
+
+	/**
+	 * Values held as codes into a dictionary, until there are too many distinct values for a
+	 * 16 bit code, at which point the rows so far are moved into a TextColumn which takes over.
+	 */
+	private static class DictionaryColumn extends Column {
+		private static final int MAX_VALUES = 1 << 16;
+
+		private char[] codes;
+		private byte[][] values = new byte[16][];
+		private int valueCount = 0;
+		//Open addressing table of code + 1, with 0 marking an empty slot
+		private int[] slots = new int[32];
+		private TextColumn overflow;
+
+		DictionaryColumn(int capacity) {
+			codes = new char[capacity];
+		}
+
+		@Override
+		void set(int row, ByteBuffer source, int from, int to) {
+			if (overflow != null) {
+				overflow.set(row, source, from, to);
+				return;
+			}
+			int hash = hash(source, from, to);
+			int mask = slots.length - 1;
+			int slot = hash & mask;
+			while (slots[slot] != 0) {
+				int code = slots[slot] - 1;
+				if (matches(values[code], source, from, to)) {
+					codes[row] = (char) code;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+			if (valueCount == MAX_VALUES) {
+				overflow(row);
+				overflow.set(row, source, from, to);
+				return;
+			}
+			byte[] value = new byte[to - from];
+			for (int i = 0; i < value.length; i++) {
+				value[i] = source.get(from + i);
+			}
+			if (valueCount == values.length) {
+				values = Arrays.copyOf(values, valueCount * 2);
+			}
+			values[valueCount] = value;
+			slots[slot] = valueCount + 1;
+			codes[row] = (char) valueCount++;
+			if (valueCount * 2 > slots.length) {
+				rehash();
+			}
+		}
+
+		private void overflow(int rows) {
+			overflow = new TextColumn(codes.length);
+			for (int row = 0; row < rows; row++) {
+				byte[] value = values[codes[row]];
+				overflow.set(row, ByteBuffer.wrap(value), 0, value.length);
+			}
+			codes = null;
+			values = null;
+			slots = null;
+		}
+
+		private void rehash() {
+			int[] rehashed = new int[slots.length * 2];
+			int mask = rehashed.length - 1;
+			for (int code = 0; code < valueCount; code++) {
+				byte[] value = values[code];
+				int slot = hash(ByteBuffer.wrap(value), 0, value.length) & mask;
+				while (rehashed[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				rehashed[slot] = code + 1;
+			}
+			slots = rehashed;
+		}
+
+		private static int hash(ByteBuffer source, int from, int to) {
+			int hash = 0x811c9dc5;
+			for (int i = from; i < to; i++) {
+				hash = (hash ^ (source.get(i) & 0xFF)) * 0x01000193;
+			}
+			return hash ^ (hash >>> 16);
+		}
+
+		private static boolean matches(byte[] value, ByteBuffer source, int from, int to) {
+			if (value.length != to - from) {
+				return false;
+			}
+			for (int i = 0; i < value.length; i++) {
+				if (value[i] != source.get(from + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		void get(int row, Line line) {
+			if (overflow != null) {
+				overflow.get(row, line);
+				return;
+			}
+			byte[] value = values[codes[row]];
+			line.put(value, 0, value.length);
+		}
+
+		@Override
+		void resize(int capacity) {
+			if (overflow != null) {
+				overflow.resize(capacity);
+			} else {
+				codes = Arrays.copyOf(codes, capacity);
+			}
+		}
+
+		@Override
+		void trim() {
+			if (overflow != null) {
+				overflow.trim();
+			}
+		}
+	}
+
+	/**
+	 * Values held as UTF-8 bytes in shared chunks, addressed by the chunk and offset of each row
+	 */
+	private static class TextColumn extends Column {
+		private static final int FIRST_CHUNK_SIZE = 64 * 1024;
+		private static final int CHUNK_SIZE = 1024 * 1024;
+
+		private final List<byte[]> chunks = new ArrayList<byte[]>();
+		private byte[] chunk;
+		private int chunkUsed;
+		private int nextChunkSize = FIRST_CHUNK_SIZE;
+		private long[] starts;
+		private int[] lengths;
+
+		TextColumn(int capacity) {
+			starts = new long[capacity];
+			lengths = new int[capacity];
+		}
+
+		@Override
+		void set(int row, ByteBuffer source, int from, int to) {
+			int length = to - from;
+			if (chunk == null || chunk.length - chunkUsed < length) {
+				chunk = new byte[Math.max(nextChunkSize, length)];
+				chunkUsed = 0;
+				chunks.add(chunk);
+				nextChunkSize = Math.min(nextChunkSize * 2, CHUNK_SIZE);
+			}
+			for (int i = 0; i < length; i++) {
+				chunk[chunkUsed + i] = source.get(from + i);
+			}
+			starts[row] = ((long) (chunks.size() - 1) << 32) | chunkUsed;
+			lengths[row] = length;
+			chunkUsed += length;
+		}
+
+		@Override
+		void get(int row, Line line) {
+			long start = starts[row];
+			line.put(chunks.get((int) (start >>> 32)), (int) start, lengths[row]);
+		}
+
+		@Override
+		void resize(int capacity) {
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+
+		//Gives up the unused end of the last chunk, which is then no longer written to
+		@Override
+		void trim() {
+			if (chunk != null && chunkUsed < chunk.length) {
+				chunks.set(chunks.size() - 1, Arrays.copyOf(chunk, chunkUsed));
+			}
+			chunk = null;
+		}
+	}
+
+	/**
+	 * SCTIDs, or UUIDs if that is what the first row holds.  Any value not in the expected
+	 * canonical form is kept as it is, so that every row is rebuilt exactly as it was read.
+	 */
+	private static class IdentifierColumn extends Column {
+		private static final int MAX_SCTID_LENGTH = 18;
+		private static final int UUID_LENGTH = 36;
+		private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+		private boolean decided = false;
+		private boolean uuids;
+		//SCTIDs, or the least significant half of each UUID
+		private long[] values;
+		private long[] mostSignificant;
+		private final Map<Integer, byte[]> others = new HashMap<Integer, byte[]>();
+
+		IdentifierColumn(int capacity) {
+			values = new long[capacity];
+		}
+
+		@Override
+		void set(int row, ByteBuffer source, int from, int to) {
+			if (!decided) {
+				decided = true;
+				uuids = isUuid(source, from, to);
+				if (uuids) {
+					mostSignificant = new long[values.length];
+				}
+			}
+			if (uuids ? isUuid(source, from, to) : isSctid(source, from, to)) {
+				if (uuids) {
+					mostSignificant[row] = parseHex(source, from, from + 18);
+					values[row] = parseHex(source, from + 19, to);
+				} else {
+					long sctid = 0;
+					for (int i = from; i < to; i++) {
+						sctid = sctid * 10 + (source.get(i) - '0');
+					}
+					values[row] = sctid;
+				}
+			} else {
+				byte[] value = new byte[to - from];
+				for (int i = 0; i < value.length; i++) {
+					value[i] = source.get(from + i);
+				}
+				others.put(row, value);
+			}
+		}
+
+		private static boolean isSctid(ByteBuffer source, int from, int to) {
+			int length = to - from;
+			if (length == 0 || length > MAX_SCTID_LENGTH || (length > 1 && source.get(from) == '0')) {
+				return false;
+			}
+			for (int i = from; i < to; i++) {
+				byte b = source.get(i);
+				if (b < '0' || b > '9') {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		//Lower case only, as that is how they are written back out
+		private static boolean isUuid(ByteBuffer source, int from, int to) {
+			if (to - from != UUID_LENGTH) {
+				return false;
+			}
+			for (int i = 0; i < UUID_LENGTH; i++) {
+				byte b = source.get(from + i);
+				boolean dash = i == 8 || i == 13 || i == 18 || i == 23;
+				if (dash ? b != '-' : !((b >= '0' && b <= '9') || (b >= 'a' && b <= 'f'))) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static long parseHex(ByteBuffer source, int from, int to) {
+			long value = 0;
+			for (int i = from; i < to; i++) {
+				byte b = source.get(i);
+				if (b != '-') {
+					value = (value << 4) | (b <= '9' ? b - '0' : b - 'a' + 10);
+				}
+			}
+			return value;
+		}
+
+		@Override
+		long getSctid(int row) {
+			if (uuids || (!others.isEmpty() && others.containsKey(row))) {
+				return super.getSctid(row);
+			}
+			return values[row];
+		}
+
+		@Override
+		void get(int row, Line line) {
+			if (!others.isEmpty()) {
+				byte[] value = others.get(row);
+				if (value != null) {
+					line.put(value, 0, value.length);
+					return;
+				}
+			}
+			if (uuids) {
+				putHex(line, mostSignificant[row], 0, 8);
+				line.put((byte) '-');
+				putHex(line, mostSignificant[row], 8, 12);
+				line.put((byte) '-');
+				putHex(line, mostSignificant[row], 12, 16);
+				line.put((byte) '-');
+				putHex(line, values[row], 0, 4);
+				line.put((byte) '-');
+				putHex(line, values[row], 4, 16);
+			} else {
+				putDecimal(line, values[row]);
+			}
+		}
+
+		//Writes the given hex digits of the value, counting from the most significant
+		private static void putHex(Line line, long value, int fromDigit, int toDigit) {
+			for (int digit = fromDigit; digit < toDigit; digit++) {
+				line.put(HEX_DIGITS[(int) (value >>> (60 - digit * 4)) & 0xF]);
+			}
+		}
+
+		private static void putDecimal(Line line, long value) {
+			byte[] digits = new byte[MAX_SCTID_LENGTH + 1];
+			int position = digits.length;
+			do {
+				digits[--position] = (byte) ('0' + value % 10);
+				value /= 10;
+			} while (value > 0);
+			line.put(digits, position, digits.length - position);
+		}
+
+		@Override
+		void resize(int capacity) {
+			values = Arrays.copyOf(values, capacity);
+			if (mostSignificant != null) {
+				mostSignificant = Arrays.copyOf(mostSignificant, capacity);
+			}
+		}
+	}
+}
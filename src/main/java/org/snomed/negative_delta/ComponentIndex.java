@@ -0,0 +1,388 @@
+package org.snomed.negative_delta;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.snomed.ApplicationException;
+
+/**
+ * Open addressing hash index of component histories, keyed on the primitive form of the 
+ * component identifier rather than a String.  SCTIDs are held as (0, sctid) and UUID refset
+ * member identifiers as (mostSignificantBits, leastSignificantBits).
+ * 
+ * Each history is a compact array of rows held in ascending effectiveTime order.  A second row
+ * for the same component and effectiveTime is kept after the first, so that the ambiguity can
+ * be reported, unless it is an exact duplicate of a row already held.
+ */
+public class ComponentIndex {
+	
+	private static final int MAX_SCTID_LENGTH = 18;
+	private static final int UUID_LENGTH = 36;
+	private static final int MIN_CAPACITY = 16;
+	private static final Rf2Row[] NO_ROWS = new Rf2Row[0];
+	
+	private long[] hiKeys;
+	private long[] loKeys;
+	private Rf2Row[][] histories;
+	private int size = 0;
+	//Key arrays still shared with the index this was copied from, see copyOnWrite()
+	private boolean sharedKeys = false;
+	
+	public ComponentIndex() {
+		this(MIN_CAPACITY);
+	}
+	
+	public ComponentIndex(int expectedComponents) {
+		allocate(tableSizeFor(expectedComponents));
+	}
+	
+	/**
+	 * @return a copy which can be changed without affecting this index.  Only the table of 
+	 * histories is copied.  The keys, the history arrays and the rows themselves are shared, 
+	 * since removal only ever replaces a slot's history, and the keys are only copied if a 
+	 * new component is added to the copy.  This index must not be changed once copied.
+	 */
+	public ComponentIndex copyOnWrite() {
+		ComponentIndex copy = new ComponentIndex(0);
+		copy.hiKeys = hiKeys;
+		copy.loKeys = loKeys;
+		copy.histories = histories.clone();
+		copy.size = size;
+		copy.sharedKeys = true;
+		return copy;
+	}
+	
+	public static long keyHi(String id) throws ApplicationException {
+		if (isSctid(id)) {
+			return 0L;
+		}
+		return toUuid(id).getMostSignificantBits();
+	}
+	
+	public static long keyLo(String id) throws ApplicationException {
+		if (isSctid(id)) {
+			return Long.parseLong(id);
+		}
+		return toUuid(id).getLeastSignificantBits();
+	}
+	
+	/**
+	 * Key decoding for an identifier held as ASCII bytes, to save decoding it to a String first
+	 */
+	public static long keyHi(ByteBuffer buffer, int offset, int length) throws ApplicationException {
+		if (isSctid(buffer, offset, length)) {
+			return 0L;
+		}
+		long hi = parseUuidWord(buffer, offset, length, true);
+		if (hi == 0L) {
+			throw unsupportedId(buffer, offset, length);
+		}
+		return hi;
+	}
+	
+	public static long keyLo(ByteBuffer buffer, int offset, int length) throws ApplicationException {
+		if (isSctid(buffer, offset, length)) {
+			long sctid = 0;
+			for (int i = offset; i < offset + length; i++) {
+				sctid = sctid * 10 + (buffer.get(i) - '0');
+			}
+			return sctid;
+		}
+		return parseUuidWord(buffer, offset, length, false);
+	}
+	
+	private static boolean isSctid(ByteBuffer buffer, int offset, int length) {
+		if (length == 0 || length > MAX_SCTID_LENGTH) {
+			return false;
+		}
+		for (int i = offset; i < offset + length; i++) {
+			byte b = buffer.get(i);
+			if (b < '0' || b > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	//UUIDs are laid out 8-4-4-4-12, with the first three groups forming the high word
+	private static long parseUuidWord(ByteBuffer buffer, int offset, int length, boolean highWord) throws ApplicationException {
+		if (length != UUID_LENGTH) {
+			throw unsupportedId(buffer, offset, length);
+		}
+		int from = highWord ? 0 : 19;
+		int to = highWord ? 18 : UUID_LENGTH;
+		long word = 0;
+		for (int i = from; i < to; i++) {
+			byte b = buffer.get(offset + i);
+			if (i == 8 || i == 13 || i == 18 || i == 23) {
+				if (b != '-') {
+					throw unsupportedId(buffer, offset, length);
+				}
+				continue;
+			}
+			int nibble = Character.digit((char) b, 16);
+			if (nibble < 0) {
+				throw unsupportedId(buffer, offset, length);
+			}
+			word = (word << 4) | nibble;
+		}
+		return word;
+	}
+	
+	private static ApplicationException unsupportedId(ByteBuffer buffer, int offset, int length) {
+		return new ApplicationException("Unsupported component identifier: '" + SliceRf2Row.decode(buffer, offset, length) + "'");
+	}
+	
+	private static boolean isSctid(String id) {
+		int length = id.length();
+		if (length == 0 || length > MAX_SCTID_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = id.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static UUID toUuid(String id) throws ApplicationException {
+		if (id.length() == UUID_LENGTH) {
+			try {
+				UUID uuid = UUID.fromString(id);
+				//A zero high word would be indistinguishable from an SCTID
+				if (uuid.getMostSignificantBits() != 0L) {
+					return uuid;
+				}
+			} catch (IllegalArgumentException e) {
+				//Fall through to report below
+			}
+		}
+		throw new ApplicationException("Unsupported component identifier: '" + id + "'");
+	}
+
+	public Rf2Row[] get(String id) throws ApplicationException {
+		return get(keyHi(id), keyLo(id));
+	}
+	
+	/**
+	 * @return the history for the component in ascending effectiveTime order, or null if the component is unknown
+	 */
+	public Rf2Row[] get(long hi, long lo) {
+		int slot = findSlot(hi, lo);
+		return histories[slot];
+	}
+	
+	public boolean contains(long hi, long lo) {
+		return histories[findSlot(hi, lo)] != null;
+	}
+	
+	public void add(long hi, long lo, Rf2Row row) {
+		int slot = findSlot(hi, lo);
+		Rf2Row[] history = histories[slot];
+		if (history == null) {
+			unshareKeys();
+			hiKeys[slot] = hi;
+			loKeys[slot] = lo;
+			histories[slot] = new Rf2Row[] { row };
+			if (++size > histories.length / 2) {
+				allocate(histories.length * 2);
+			}
+			return;
+		}
+		//Histories are short, so a linear search for the insertion point is cheapest
+		int insertAt = history.length;
+		for (int i = 0; i < history.length; i++) {
+			long effectiveTime = history[i].getEffectiveTime();
+			if (effectiveTime == row.getEffectiveTime() && history[i].getFingerprint() == row.getFingerprint() && history[i].equals(row)) {
+				return;
+			} else if (effectiveTime > row.getEffectiveTime()) {
+				insertAt = i;
+				break;
+			}
+		}
+		Rf2Row[] expanded = new Rf2Row[history.length + 1];
+		System.arraycopy(history, 0, expanded, 0, insertAt);
+		expanded[insertAt] = row;
+		System.arraycopy(history, insertAt, expanded, insertAt + 1, history.length - insertAt);
+		histories[slot] = expanded;
+	}
+	
+	/**
+	 * Sets the whole history for a component, which must already be in ascending effectiveTime order
+	 */
+	public void putHistory(long hi, long lo, Rf2Row[] history) {
+		int slot = findSlot(hi, lo);
+		if (histories[slot] == null) {
+			unshareKeys();
+			hiKeys[slot] = hi;
+			loKeys[slot] = lo;
+			histories[slot] = history;
+			if (++size > histories.length / 2) {
+				allocate(histories.length * 2);
+			}
+		} else {
+			histories[slot] = history;
+		}
+	}
+	
+	/**
+	 * Removes the given row instance from the component's history.  The component itself 
+	 * remains in the index, even if it is left with no rows.
+	 */
+	public boolean remove(long hi, long lo, Rf2Row row) {
+		int slot = findSlot(hi, lo);
+		Rf2Row[] history = histories[slot];
+		if (history == null) {
+			return false;
+		}
+		for (int i = 0; i < history.length; i++) {
+			if (history[i] == row) {
+				removeAt(slot, i);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void removeAt(int slot, int idx) {
+		Rf2Row[] history = histories[slot];
+		Rf2Row[] reduced = history.length == 1 ? NO_ROWS : new Rf2Row[history.length - 1];
+		System.arraycopy(history, 0, reduced, 0, idx);
+		System.arraycopy(history, idx + 1, reduced, idx, history.length - idx - 1);
+		histories[slot] = reduced;
+	}
+	
+	/**
+	 * Drops every row with an effectiveTime later than that given, in place.
+	 * @return the number of rows removed
+	 */
+	public int removeLaterThan(long maxEffectiveTime) {
+		return removeLaterThan(maxEffectiveTime, 0, histories.length);
+	}
+	
+	/**
+	 * As removeLaterThan, but only for the given range of slots, so that disjoint ranges may be 
+	 * worked on concurrently.
+	 */
+	int removeLaterThan(long maxEffectiveTime, int fromSlot, int toSlot) {
+		int removed = 0;
+		for (int slot = fromSlot; slot < toSlot; slot++) {
+			Rf2Row[] history = histories[slot];
+			if (history == null) {
+				continue;
+			}
+			int keep = history.length;
+			while (keep > 0 && history[keep - 1].getEffectiveTime() > maxEffectiveTime) {
+				keep--;
+			}
+			if (keep < history.length) {
+				histories[slot] = keep == 0 ? NO_ROWS : Arrays.copyOf(history, keep);
+				removed += history.length - keep;
+			}
+		}
+		return removed;
+	}
+	
+	/**
+	 * @return number of components held
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Counted on demand, so that concurrent removals from different components need no coordination
+	 */
+	public int getRowCount() {
+		int rowCount = 0;
+		for (Rf2Row[] history : histories) {
+			if (history != null) {
+				rowCount += history.length;
+			}
+		}
+		return rowCount;
+	}
+	
+	/*
+	 * Slot level access allows callers to walk the index without allocating iterators or keys.
+	 * Slots are only valid until the next component is added.  Once loaded, rows may be removed
+	 * from different slots concurrently, since removal only ever replaces that slot's history.
+	 */
+	int capacity() {
+		return histories.length;
+	}
+	
+	boolean isOccupied(int slot) {
+		return histories[slot] != null;
+	}
+	
+	long hiAt(int slot) {
+		return hiKeys[slot];
+	}
+	
+	long loAt(int slot) {
+		return loKeys[slot];
+	}
+	
+	Rf2Row[] historyAt(int slot) {
+		return histories[slot];
+	}
+	
+	private void unshareKeys() {
+		if (sharedKeys) {
+			hiKeys = hiKeys.clone();
+			loKeys = loKeys.clone();
+			sharedKeys = false;
+		}
+	}
+	
+	private int findSlot(long hi, long lo) {
+		int mask = histories.length - 1;
+		int slot = hash(hi, lo) & mask;
+		while (histories[slot] != null && (hiKeys[slot] != hi || loKeys[slot] != lo)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private static int hash(long hi, long lo) {
+		//Murmur3 finaliser, since SCTIDs share their low order check digit and partition identifier
+		long h = hi * 0x9E3779B97F4A7C15L ^ lo;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+	
+	private void allocate(int capacity) {
+		long[] oldHi = hiKeys;
+		long[] oldLo = loKeys;
+		Rf2Row[][] oldHistories = histories;
+		hiKeys = new long[capacity];
+		loKeys = new long[capacity];
+		histories = new Rf2Row[capacity][];
+		if (oldHistories != null) {
+			for (int i = 0; i < oldHistories.length; i++) {
+				if (oldHistories[i] != null) {
+					int slot = findSlot(oldHi[i], oldLo[i]);
+					hiKeys[slot] = oldHi[i];
+					loKeys[slot] = oldLo[i];
+					histories[slot] = oldHistories[i];
+				}
+			}
+		}
+	}
+	
+	private static int tableSizeFor(int expectedComponents) {
+		int capacity = MIN_CAPACITY;
+		while (capacity / 2 < expectedComponents) {
+			capacity *= 2;
+		}
+		return capacity;
+	}
+}
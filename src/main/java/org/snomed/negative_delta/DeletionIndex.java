@@ -0,0 +1,109 @@
+package org.snomed.negative_delta;
+
+/**
+ * Hash index over the rows of a negative delta, keyed on component, effectiveTime and a 
+ * fingerprint of the row content, so that any full row can be tested for deletion with a 
+ * single lookup.  Tracks which deletion rows have been matched, for reporting.
+ * 
+ * Once built, concurrent lookups are safe provided that each deletion row can only be 
+ * matched by rows of its own component, which is always the case.
+ */
+public class DeletionIndex {
+	
+	private long[] his;
+	private long[] los;
+	private long[] effectiveTimes;
+	private long[] fingerprints;
+	private Rf2Row[] rows;
+	private boolean[] matched;
+	private int size = 0;
+	
+	public DeletionIndex(ComponentIndex deletions) {
+		int capacity = 16;
+		while (capacity / 2 < deletions.getRowCount()) {
+			capacity *= 2;
+		}
+		his = new long[capacity];
+		los = new long[capacity];
+		effectiveTimes = new long[capacity];
+		fingerprints = new long[capacity];
+		rows = new Rf2Row[capacity];
+		matched = new boolean[capacity];
+		for (int slot = 0; slot < deletions.capacity(); slot++) {
+			if (deletions.isOccupied(slot)) {
+				for (Rf2Row deletionRow : deletions.historyAt(slot)) {
+					add(deletions.hiAt(slot), deletions.loAt(slot), deletionRow);
+				}
+			}
+		}
+	}
+	
+	private void add(long hi, long lo, Rf2Row row) {
+		long fingerprint = row.getFingerprint();
+		int slot = findSlot(hi, lo, row.getEffectiveTime(), fingerprint, row);
+		if (rows[slot] == null) {
+			his[slot] = hi;
+			los[slot] = lo;
+			effectiveTimes[slot] = row.getEffectiveTime();
+			fingerprints[slot] = fingerprint;
+			rows[slot] = row;
+			size++;
+		}
+	}
+	
+	/**
+	 * @return true if the full row is one which the negative delta deletes, in which case the
+	 * deletion row is marked as matched.
+	 */
+	public boolean match(long hi, long lo, Rf2Row fullRow) {
+		if (size == 0) {
+			return false;
+		}
+		int slot = findSlot(hi, lo, fullRow.getEffectiveTime(), fullRow.getFingerprint(), fullRow);
+		if (rows[slot] == null) {
+			return false;
+		}
+		matched[slot] = true;
+		return true;
+	}
+	
+	private int findSlot(long hi, long lo, long effectiveTime, long fingerprint, Rf2Row row) {
+		int mask = rows.length - 1;
+		int slot = hash(hi, lo, effectiveTime, fingerprint) & mask;
+		while (rows[slot] != null) {
+			//The fingerprint filters out almost every non-match before the full content is compared
+			if (his[slot] == hi && los[slot] == lo && effectiveTimes[slot] == effectiveTime 
+					&& fingerprints[slot] == fingerprint && rows[slot].equals(row)) {
+				break;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private static int hash(long hi, long lo, long effectiveTime, long fingerprint) {
+		long h = (hi * 31 + lo) * 0x9E3779B97F4A7C15L ^ effectiveTime ^ fingerprint;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int getMatchedCount() {
+		int count = 0;
+		for (boolean isMatched : matched) {
+			if (isMatched) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	public int getUnmatchedCount() {
+		return size - getMatchedCount();
+	}
+}
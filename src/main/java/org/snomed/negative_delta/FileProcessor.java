@@ -3,137 +3,746 @@ package org.snomed.negative_delta;
 import static org.snomed.util.GlobalUtils.print;
 
 import java.io.File;
-import java.io.PrintWriter;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.snomed.ApplicationException;
+import org.snomed.negative_delta.ProcessingOptions.RowStorage;
+import org.snomed.negative_delta.TableMetrics.Output;
+import org.snomed.util.ArchiveBuilder;
 import org.snomed.util.GlobalUtils;
+import org.snomed.util.PipelinedOutputStream;
 
-public class FileProcessor implements Runnable, SnomedConstants {
+import com.google.common.io.Files;
+
+public class FileProcessor implements Callable<Void>, SnomedConstants {
+	
+	//Measured on loaded Full files, each row held on the heap costs its text plus around 100 bytes
+	private static final int HEAP_BYTES_PER_ROW = 100;
+	//Mapped and off heap rows hold just their position in the file or arena, and the index entry
+	private static final int MAPPED_BYTES_PER_ROW = 64;
+	//Columnar rows hold their fields on the heap, but mostly as dictionary codes and longs
+	private static final int COLUMNAR_BYTES_PER_ROW = 120;
+	//Rows of a shared release are already held, only the table of histories is copied
+	private static final int SHARED_BYTES_PER_ROW = 8;
+	//Used to find the average row length of each file
+	private static final int SAMPLE_BYTES = 64 * 1024;
+	//Output held between export and the writing stage of each file, when pipelined
+	private static final int MAX_OUTPUT_CHUNKS_IN_FLIGHT = 4;
 	
+	private Rf2Source negativeDeltaSource;
+	private Rf2Source fullFileSource;
 	private Rf2File negativeDelta;
 	private Rf2File fullFile;
 	private File revisedReleaseLocation;
 	private File revisedDeletedStateLocation;
 	private String[] targetEffectiveTimes;
 	private Long maxTargetEffectiveTime = null;
+	private long[] targetEffectiveTimeValues = null;
 	private SnomedTable table;
 	NegativeDeltaProcessor parent;
 	String edition;
-	Set<String> allComponents;
+	ProcessingOptions options;
+	TableMetrics metrics;
+	
+	private Rf2Writer fullOutput;
+	private Rf2Writer snapOutput;
+	private Rf2Writer deltaOutput;
+	private Rf2Writer snapDeletedOutput;
+	private int newStateComponents = 0;
+	private int rowsRemoved = 0;
+	private int unmatchedDeletions = 0;
+	private int rowsAfterTarget = 0;
+	private long estimatedHeapCost = -1;
+	private ReferenceIndex.Columns referenceColumns;
+	private final AtomicInteger rowsCascaded = new AtomicInteger();
+	private final AtomicInteger componentsCascaded = new AtomicInteger();
 	
 	private FileProcessor() {
 	}
 	
-	public static void processFile (File negativeDelta, 
-			File fullFile, 
+	/**
+	 * @return a job to process the table, or null if the file is not recognised
+	 */
+	public static FileProcessor create (Rf2Source negativeDelta, 
+			Rf2Source fullFile, 
 			File revisedReleaseLocation, 
 			File revisedDeletedStateLocation, 
 			String[] targetEffectiveTimes,
 			NegativeDeltaProcessor parent,
 			String edition) {
 		FileProcessor fp = new FileProcessor();
-		fp.negativeDelta = new Rf2File(negativeDelta);
-		fp.fullFile = new Rf2File(fullFile);
+		fp.negativeDeltaSource = negativeDelta;
+		fp.fullFileSource = fullFile;
 		fp.revisedReleaseLocation = revisedReleaseLocation;
 		fp.revisedDeletedStateLocation = revisedDeletedStateLocation;
 		fp.targetEffectiveTimes = targetEffectiveTimes;
 		fp.table = identifyTable(fullFile.getName(), TableType.FULL);
 		fp.parent = parent;
+		fp.options = parent.getOptions();
 		if (fp.table == null) {
 			print ("Unable to process unrecognised file :" + fullFile.getName());
-			return;
+			return null;
 		}
 		fp.edition = edition;
-		Thread thread = new Thread(fp, fp.table.getTableName());
-		thread.start();
+		fp.metrics = parent.getRunReport().addTable(fp.table.getTableName());
+		if (parent.getReferenceIndex() != null) {
+			fp.referenceColumns = new ReferenceIndex.Columns(fp.table);
+		}
+		return fp;
+	}
+	
+	/**
+	 * A job over a negative delta and Full already held in memory, so that single phases can be
+	 * driven directly, as the benchmarks do.  The Full is worked on through a copy-on-write copy,
+	 * so is left as it is, and metrics are kept out of the parent's report.
+	 */
+	static FileProcessor forLoaded(String fullFileName, ComponentIndex negativeDelta, ComponentIndex full, String[] targetEffectiveTimes, NegativeDeltaProcessor parent) {
+		FileProcessor fp = new FileProcessor();
+		fp.table = identifyTable(fullFileName, TableType.FULL);
+		fp.targetEffectiveTimes = targetEffectiveTimes;
+		fp.parent = parent;
+		fp.options = parent.getOptions();
+		fp.edition = parent.edition;
+		fp.metrics = new TableMetrics(fp.table.getTableName());
+		fp.negativeDelta = new Rf2File(negativeDelta);
+		fp.fullFile = new Rf2File(full.copyOnWrite());
+		if (parent.getReferenceIndex() != null) {
+			fp.referenceColumns = new ReferenceIndex.Columns(fp.table);
+		}
+		return fp;
 	}
 
 	@Override
-	public void run() {
-		parent.registerChild(table.getTableName(), true); //Register as pending, until we have spare capacity
+	public Void call() throws ApplicationException {
+		String threadName = Thread.currentThread().getName();
+		Thread.currentThread().setName(table.getTableName());
+		print ("Starting process " + table.getTableName());
 		String result = "processing incomplete";
+		long startNanos = System.nanoTime();
+		metrics.setStatus("started");
 		try {
-			//Register with the parent - when it's able
-			while (!parent.hasSpareCapacity()) {
-				Thread.sleep(5 * 1000);
-			}
-			parent.registerChild(table.getTableName(), false);
-			negativeDelta.loadFile(true);
-			fullFile.loadFile(false);
-			allComponents = fullFile.getComponents();
-			removeDeltaFromFull();
-			removeLaterEffectiveTime();
-			outputFull();
-			outputSnapshot();
-			outputDelta();
-			outputNewStateOfDeletedComponents();
+			if (options.isPreview()) {
+				processPreview();
+				result = "preview complete";
+				return null;
+			}
+			prepareOutputs();
+			Rf2Scanner untouched = scanForUntouched();
+			if (untouched != null) {
+				passThrough(untouched);
+			} else if (options.isPartitioned()) {
+				processPartitioned();
+			} else {
+				processPartition(negativeDeltaSource, fullFileSource);
+			}
+			if (rowsRemoved > 0) {
+				print (rowsRemoved + " rows removed in " + table.getTableName());
+			}
+			if (unmatchedDeletions > 0) {
+				print ("** " + unmatchedDeletions + " negative delta rows matched nothing in " + table.getTableName());
+			}
+			if (rowsCascaded.get() > 0) {
+				print (rowsCascaded.get() + " rows removed from " + table.getTableName() + " as they refer to deleted components, leaving " + componentsCascaded.get() + " components with no rows");
+			}
+			if (newStateComponents > 0) {
+				print("New state calculated in " + table.getTableName());
+			}
+			closeOutputs();
 			result = "processing complete";
-		} catch (Exception e) {
+			return null;
+		} catch (ApplicationException | RuntimeException e) {
 			result = "failed due to " + e.getMessage();
-			e.printStackTrace();
+			throw e;
 		} finally {
-			parent.releaseChild(table.getTableName(), result);
+			abandonOutputs();
+			metrics.setTotalNanos(System.nanoTime() - startNanos);
+			metrics.setStatus(result);
+			print (table.getTableName() + " process " + result);
+			Thread.currentThread().setName(threadName);
 		}
 	}
+	
+	int getRowsRemoved() {
+		return rowsRemoved;
+	}
+	
+	/**
+	 * @return combined size of the files to be read, used to schedule the largest tables first
+	 */
+	long getInputSize() {
+		long size = Math.max(0, fullFileSource.getSize());
+		if (negativeDeltaSource != null) {
+			size += Math.max(0, negativeDeltaSource.getSize());
+		}
+		return size;
+	}
+	
+	String getTableName() {
+		return table.getTableName();
+	}
+	
+	SnomedTable getTable() {
+		return table;
+	}
+	
+	/**
+	 * @return a rough estimate of the heap needed to process this table, from the size of its files
+	 * and the number of rows that implies, so that the scheduler can keep the tables in progress 
+	 * within the heap budget.  The streaming modes hold less than this, so are over estimated.
+	 */
+	long getEstimatedHeapCost() {
+		if (estimatedHeapCost < 0) {
+			//Deletion rows are always held on the heap
+			long cost = getSize(negativeDeltaSource) + estimateRows(negativeDeltaSource) * HEAP_BYTES_PER_ROW;
+			long fullRows = options.isPreview() ? 0 : estimateRows(fullFileSource);
+			if (parent.getSharedRelease() != null) {
+				cost += fullRows * SHARED_BYTES_PER_ROW;
+			} else if (options.getStorage() == RowStorage.MAPPED || options.getStorage() == RowStorage.OFFHEAP) {
+				cost += fullRows * MAPPED_BYTES_PER_ROW / options.getPartitions();
+			} else if (options.getStorage() == RowStorage.COLUMNAR) {
+				cost += fullRows * COLUMNAR_BYTES_PER_ROW / options.getPartitions();
+			} else {
+				cost += (getSize(fullFileSource) + fullRows * HEAP_BYTES_PER_ROW) / options.getPartitions();
+			}
+			estimatedHeapCost = cost;
+			metrics.setEstimatedHeapBytes(cost);
+		}
+		return estimatedHeapCost;
+	}
+	
+	//Scaled up from the number of lines in the first few KB
+	private static long estimateRows(Rf2Source source) {
+		long size = getSize(source);
+		if (size == 0) {
+			return 0;
+		}
+		byte[] sample = new byte[(int) Math.min(size, SAMPLE_BYTES)];
+		int sampled = 0;
+		try (InputStream in = source.openStream()) {
+			int read;
+			while (sampled < sample.length && (read = in.read(sample, sampled, sample.length - sampled)) > 0) {
+				sampled += read;
+			}
+		} catch (IOException e) {
+			print ("Unable to sample " + source + ": " + e.getMessage());
+			return 0;
+		}
+		int lines = 0;
+		for (int i = 0; i < sampled; i++) {
+			if (sample[i] == '\n') {
+				lines++;
+			}
+		}
+		return lines == 0 ? 1 : size * lines / sampled;
+	}
 
-	private void removeDeltaFromFull() {
-		//Loop through the active deletions and remove them from the full
-		//TODO Check for inactive deletions
-		int rowsRemoved = 0;
-		for (String id : negativeDelta.getComponents()) {
-			for(Rf2Row deletionRow : negativeDelta.getComponentHistory(id).descendingSet()) {
-				Set<Rf2Row> fullRows = new HashSet<Rf2Row>(fullFile.getComponentHistory(id).descendingSet()); //Copy so we can modify original
-				for(Rf2Row fullRow : fullRows) {
-					if (fullRow.equals(deletionRow)) {
-						fullFile.removeRow(id, fullRow);
+	/**
+	 * Reads the Full file once, counting the rows the negative delta would remove and those
+	 * later than the max target effectiveTime, without holding any of the Full file beyond the
+	 * row being read, and without writing anything.  Only rows of components named in the
+	 * negative delta are ever compared, those of all others being rejected on their key alone.
+	 */
+	private void processPreview() throws ApplicationException {
+		PhaseTimer timer = metrics.start(Phase.LOAD);
+		negativeDelta = new Rf2File(negativeDeltaSource);
+		negativeDelta.loadFile(true);
+		metrics.addDeletionRows(negativeDelta.getRowsRead());
+		ComponentIndex deletions = negativeDelta.getComponents();
+		DeletionIndex deletionIndex = new DeletionIndex(deletions);
+		long maxEffectiveTime = getMaxTargetEffectiveTime();
+		long rowsIn = 0;
+		if (fullFileSource != null) {
+			try (Rf2Reader reader = Rf2File.openReader(fullFileSource, options.getStorage(), false)) {
+				while (reader.next()) {
+					long hi = reader.getHi();
+					long lo = reader.getLo();
+					rowsIn++;
+					//Matched before truncation, as they would be removed in that order
+					if (deletions.contains(hi, lo) && deletionIndex.match(hi, lo, reader.getRow())) {
 						rowsRemoved++;
+					} else if (reader.getEffectiveTime() > maxEffectiveTime) {
+						rowsAfterTarget++;
 					}
 				}
+			} catch (IOException e) {
+				throw new ApplicationException("Failed to read " + fullFileSource, e);
 			}
 		}
-		if (rowsRemoved > 0) {
-			print (rowsRemoved + " rows removed in " + table.getTableName());
+		unmatchedDeletions = deletionIndex.getUnmatchedCount();
+		long bytesIn = getSize(negativeDeltaSource) + getSize(fullFileSource);
+		metrics.addInput(rowsIn, bytesIn);
+		metrics.addRowsRemoved(rowsRemoved);
+		metrics.addRowsTruncated(rowsAfterTarget);
+		metrics.end(timer, Phase.LOAD, rowsIn, bytesIn);
+		print ("Preview of " + table.getTableName() + ": " + rowsRemoved + " of " + rowsIn + " rows would be removed, " 
+				+ rowsAfterTarget + " rows after " + maxEffectiveTime + " dropped, " 
+				+ unmatchedDeletions + " of " + deletionIndex.size() + " negative delta rows match nothing");
+		negativeDelta = null;
+	}
+	
+	/**
+	 * @return true if processing would remove any rows from the table
+	 */
+	boolean isChanged() {
+		return rowsRemoved > 0 || rowsAfterTarget > 0;
+	}
+	
+	/**
+	 * Splits the full and negative delta files into hashed buckets on disk and works
+	 * through them one at a time, so only a single bucket is ever held in memory.
+	 */
+	private void processPartitioned() throws ApplicationException {
+		File spillLocation = Files.createTempDir();
+		try {
+			int partitions = options.getPartitions();
+			print ("Partitioning " + table.getTableName() + " into " + partitions + " buckets in " + spillLocation);
+			File[] deltaBuckets = Rf2Partitioner.partition(negativeDeltaSource, spillLocation, partitions);
+			File[] fullBuckets = Rf2Partitioner.partition(fullFileSource, spillLocation, partitions);
+			for (int i = 0; i < partitions; i++) {
+				processPartition(asSource(deltaBuckets[i]), asSource(fullBuckets[i]));
+				//Bucket has been fully exported, no need to keep it on disk
+				GlobalUtils.delete(deltaBuckets[i]);
+				GlobalUtils.delete(fullBuckets[i]);
+			}
+		} finally {
+			GlobalUtils.delete(spillLocation);
 		}
 	}
 	
-	private void removeLaterEffectiveTime() {
-		//Loop through the full file and remove effective times > targetEffectiveTime
-		for (String id : fullFile.getComponents()) {
-			for(Rf2Row fullRow : fullFile.getComponentHistory(id).descendingSet()) {
-				if (fullRow.getEffectiveTime() > getMaxTargetEffectiveTime()) {
-					fullFile.removeRow(id, fullRow);
+	/**
+	 * A table which the negative delta does not touch, and which has no rows after the max target
+	 * effectiveTime, has no row to change.  Worth a quick scan of the Full file to find out, as its
+	 * rows then need not be parsed, held or rebuilt at all.
+	 * @return the scan, if the table is untouched, otherwise null
+	 */
+	private Rf2Scanner scanForUntouched() throws ApplicationException {
+		//Every row must be seen for its references to be checked, and the Snapshot pass holds the 
+		//latest row of every component at once, which -partitions is there to avoid
+		if (parent.getReferenceIndex() != null || options.isPartitioned() || hasDeletionRows()) {
+			return null;
+		}
+		Rf2Scanner scan = Rf2Scanner.scan(fullFileSource, table.getFileHeader(), getMaxTargetEffectiveTime());
+		if (!scan.isUnchanged()) {
+			print (table.getTableName() + " cannot be passed through untouched: " + scan.getReason());
+			return null;
+		}
+		return scan;
+	}
+	
+	private boolean hasDeletionRows() throws ApplicationException {
+		if (negativeDeltaSource == null) {
+			return false;
+		}
+		try (Rf2Reader reader = new LineRf2Reader(negativeDeltaSource, true)) {
+			return reader.next();
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to read " + negativeDeltaSource, e);
+		}
+	}
+	
+	/**
+	 * Copies the Full file as it stands, straight from disk to disk where both are files, and
+	 * derives the Snapshot and Delta in a single streaming pass which holds just the latest 
+	 * row of each component.  The new state has nothing to hold, so is left with its header.
+	 */
+	private void passThrough(Rf2Scanner scan) throws ApplicationException {
+		//Nothing is processed, so all of it is timed as part of the load
+		PhaseTimer timer = metrics.start(Phase.LOAD);
+		long rowsIn = scan.getRowCount();
+		long deltaRows = 0;
+		negativeDelta = new Rf2File(negativeDeltaSource);
+		ComponentIndex latest = new ComponentIndex();
+		try {
+			if (fullOutput != null) {
+				fullOutput.append(fullFileSource, scan.getHeaderLength());
+				metrics.addRowsOut(Output.FULL, rowsIn);
+			}
+			try (Rf2Reader reader = Rf2File.openReader(fullFileSource, options.getStorage(), false)) {
+				while (reader.next()) {
+					long hi = reader.getHi();
+					long lo = reader.getLo();
+					long effectiveTime = reader.getEffectiveTime();
+					if (isTargetEffectiveTime(effectiveTime)) {
+						reader.writeLineTo(deltaOutput);
+						deltaRows++;
+					}
+					//Only create a row for the Snapshot if it is the latest seen so far, the last read winning a tie as when indexed
+					Rf2Row[] history = latest.get(hi, lo);
+					if (history == null || history[0].getEffectiveTime() <= effectiveTime) {
+						latest.putHistory(hi, lo, new Rf2Row[] { reader.getRow() });
+					}
 				}
 			}
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to pass through " + fullFileSource, e);
 		}
+		print (rowsIn + " rows of " + latest.size() + " components passed through untouched in " + table.getTableName());
+		long bytesIn = getSize(fullFileSource);
+		metrics.addInput(rowsIn, bytesIn);
+		metrics.addRowsOut(Output.DELTA, deltaRows);
+		metrics.end(timer, Phase.LOAD, rowsIn, bytesIn);
+		export(latest, new Rf2Writer[] { null, snapOutput, null, null });
+		negativeDelta = null;
+	}
+	
+	private static Rf2Source asSource(File file) {
+		return file == null ? null : new FileRf2Source(file);
+	}
+	
+	private void processPartition(Rf2Source negativeDeltaFile, Rf2Source fullFileFile) throws ApplicationException {
+		if (options.isSelective()) {
+			selectivePartition(negativeDeltaFile, fullFileFile);
+			return;
+		}
+		if (options.isSnapshotOnly()) {
+			streamPartition(negativeDeltaFile, fullFileFile);
+			return;
+		}
+		negativeDelta = new Rf2File(negativeDeltaFile);
+		fullFile = new Rf2File(fullFileFile, options.getStorage());
+		if (parent.getSharedRelease() != null) {
+			fullFile.setBase(parent.getSharedRelease().getComponents(fullFileFile));
+		} else if (options.getImageLocation() != null) {
+			fullFile.setImage(new ReleaseImage(options.getImageLocation(), fullFileFile, parent.getReleaseIdentity()));
+		}
+		fullFile.setPipeline(parent.getPipelineStages());
+		PhaseTimer timer = metrics.start(Phase.LOAD);
+		negativeDelta.loadFile(true);
+		fullFile.loadFile(false);
+		long bytesIn = getSize(negativeDeltaFile) + getSize(fullFileFile);
+		metrics.addInput(fullFile.getRowsRead(), bytesIn);
+		metrics.addDeletionRows(negativeDelta.getRowsRead());
+		metrics.end(timer, Phase.LOAD, fullFile.getRowsRead(), bytesIn);
+		removeDeltaFromFull();
+		removeLaterEffectiveTime();
+		recordDeleted(negativeDelta.getComponents(), fullFile.getComponents());
+		newStateComponents += negativeDelta.getComponents().size();
+		export(fullFile.getComponents(), getOutputs());
+		//Release this partition before the next one is loaded
+		negativeDelta = null;
+		fullFile = null;
 	}
 
-	private void outputFull() throws ApplicationException {
-		PrintWriter fullOutput = prepareFile(revisedReleaseLocation, TableType.FULL);
-		export(allComponents, fullOutput, TableType.FULL);
+	/**
+	 * Reads the Full file once, applying the negative delta to each row as it is read, and
+	 * keeps only the rows that the Snapshot and Delta need: the latest surviving row at or 
+	 * before the max target effectiveTime, plus any rows of a target effectiveTime.  Memory 
+	 * then depends on the number of components rather than on the length of their history.
+	 */
+	private void streamPartition(Rf2Source negativeDeltaFile, Rf2Source fullFileFile) throws ApplicationException {
+		//Deletion and truncation happen as rows are read, so are timed as part of the load
+		PhaseTimer timer = metrics.start(Phase.LOAD);
+		negativeDelta = new Rf2File(negativeDeltaFile);
+		negativeDelta.loadFile(true);
+		metrics.addDeletionRows(negativeDelta.getRowsRead());
+		long rowsIn = 0;
+		int streamRowsRemoved = 0;
+		int rowsTruncated = 0;
+		ComponentIndex deletions = negativeDelta.getComponents();
+		DeletionIndex deletionIndex = new DeletionIndex(deletions);
+		long maxEffectiveTime = getMaxTargetEffectiveTime();
+		ComponentIndex retained = new ComponentIndex();
+		if (fullFileFile != null) {
+			try (Rf2Reader reader = Rf2File.openReader(fullFileFile, options.getStorage(), false)) {
+				while (reader.next()) {
+					long hi = reader.getHi();
+					long lo = reader.getLo();
+					rowsIn++;
+					//Later rows are still offered to the negative delta, so that matches are counted as they would be otherwise
+					boolean affected = deletions.contains(hi, lo);
+					if (!affected && reader.getEffectiveTime() > maxEffectiveTime) {
+						rowsTruncated++;
+						continue;
+					}
+					Rf2Row row = reader.getRow();
+					if (affected && deletionIndex.match(hi, lo, row)) {
+						streamRowsRemoved++;
+					} else if (row.getEffectiveTime() <= maxEffectiveTime) {
+						retain(retained, hi, lo, row);
+					} else {
+						rowsTruncated++;
+					}
+				}
+			} catch (IOException e) {
+				throw new ApplicationException("Failed to read " + fullFileFile, e);
+			}
+		}
+		rowsRemoved += streamRowsRemoved;
+		unmatchedDeletions += deletionIndex.getUnmatchedCount();
+		long bytesIn = getSize(negativeDeltaFile) + getSize(fullFileFile);
+		metrics.addInput(rowsIn, bytesIn);
+		metrics.addRowsRemoved(streamRowsRemoved);
+		metrics.addRowsTruncated(rowsTruncated);
+		metrics.end(timer, Phase.LOAD, rowsIn, bytesIn);
+		recordDeleted(deletions, retained);
+		newStateComponents += deletions.size();
+		export(retained, getOutputs());
+		negativeDelta = null;
+	}
+	
+	/**
+	 * Reads the Full file once, collecting the full history of only those components named in
+	 * the negative delta, which then go through the usual removal and export.  Rows of all other
+	 * components are copied to the Full and Delta outputs as read, with just the latest row of
+	 * each being held back for the Snapshot.  Rows after the max target effectiveTime are dropped.
+	 */
+	private void selectivePartition(Rf2Source negativeDeltaFile, Rf2Source fullFileFile) throws ApplicationException {
+		//Rows passed through are written as they are read, so are timed as part of the load
+		PhaseTimer timer = metrics.start(Phase.LOAD);
+		negativeDelta = new Rf2File(negativeDeltaFile);
+		negativeDelta.loadFile(true);
+		metrics.addDeletionRows(negativeDelta.getRowsRead());
+		long rowsIn = 0;
+		int rowsTruncated = 0;
+		long fullPassedThrough = 0;
+		long deltaPassedThrough = 0;
+		ComponentIndex deletions = negativeDelta.getComponents();
+		long maxEffectiveTime = getMaxTargetEffectiveTime();
+		fullFile = new Rf2File(fullFileFile);
+		ComponentIndex affected = fullFile.getComponents();
+		ComponentIndex unaffectedLatest = new ComponentIndex();
+		int passedThrough = 0;
+		if (fullFileFile != null) {
+			try (Rf2Reader reader = Rf2File.openReader(fullFileFile, options.getStorage(), false)) {
+				while (reader.next()) {
+					long hi = reader.getHi();
+					long lo = reader.getLo();
+					rowsIn++;
+					if (deletions.contains(hi, lo)) {
+						affected.add(hi, lo, reader.getRow());
+						continue;
+					}
+					long effectiveTime = reader.getEffectiveTime();
+					if (effectiveTime > maxEffectiveTime) {
+						rowsTruncated++;
+						continue;
+					}
+					if (fullOutput != null) {
+						reader.writeLineTo(fullOutput);
+						fullPassedThrough++;
+					}
+					if (isTargetEffectiveTime(effectiveTime)) {
+						reader.writeLineTo(deltaOutput);
+						deltaPassedThrough++;
+					}
+					//Only create a row for the Snapshot if it is the latest seen so far, the last read winning a tie as when indexed
+					Rf2Row[] latest = unaffectedLatest.get(hi, lo);
+					if (latest == null || latest[0].getEffectiveTime() <= effectiveTime) {
+						unaffectedLatest.putHistory(hi, lo, new Rf2Row[] { reader.getRow() });
+					}
+					passedThrough++;
+				}
+			} catch (IOException e) {
+				throw new ApplicationException("Failed to pass through " + fullFileFile, e);
+			}
+		}
+		print (passedThrough + " rows of " + unaffectedLatest.size() + " unaffected components passed through in " + table.getTableName());
+		long bytesIn = getSize(negativeDeltaFile) + getSize(fullFileFile);
+		metrics.addInput(rowsIn, bytesIn);
+		metrics.addRowsTruncated(rowsTruncated);
+		metrics.addRowsOut(Output.FULL, fullPassedThrough);
+		metrics.addRowsOut(Output.DELTA, deltaPassedThrough);
+		metrics.end(timer, Phase.LOAD, rowsIn, bytesIn);
+		removeDeltaFromFull();
+		removeLaterEffectiveTime();
+		recordDeleted(negativeDelta.getComponents(), affected);
+		newStateComponents += negativeDelta.getComponents().size();
+		export(affected, getOutputs());
+		export(unaffectedLatest, new Rf2Writer[] { null, snapOutput, null, null });
+		negativeDelta = null;
+		fullFile = null;
+	}
+	
+	//Adds the row, then drops any earlier row that is neither the latest nor needed for the Delta
+	private void retain(ComponentIndex retained, long hi, long lo, Rf2Row row) {
+		retained.add(hi, lo, row);
+		Rf2Row[] history = retained.get(hi, lo);
+		int keep = 1;
+		for (int i = 0; i < history.length - 1; i++) {
+			if (isTargetEffectiveTime(history[i].getEffectiveTime())) {
+				keep++;
+			}
+		}
+		if (keep < history.length) {
+			Rf2Row[] kept = new Rf2Row[keep];
+			int k = 0;
+			for (int i = 0; i < history.length - 1; i++) {
+				if (isTargetEffectiveTime(history[i].getEffectiveTime())) {
+					kept[k++] = history[i];
+				}
+			}
+			kept[k] = history[history.length - 1];
+			retained.putHistory(hi, lo, kept);
+		}
 	}
 
-	private void outputSnapshot() throws ApplicationException {
-		PrintWriter snapOutput = prepareFile(revisedReleaseLocation, TableType.SNAPSHOT);
-		export(allComponents, snapOutput, TableType.SNAPSHOT);
+	void removeDeltaFromFull() throws ApplicationException {
+		//Loop through the components affected by the deletions and remove matching rows from the full
+		//TODO Check for inactive deletions
+		final ComponentIndex deletions = negativeDelta.getComponents();
+		final ComponentIndex full = fullFile.getComponents();
+		final DeletionIndex deletionIndex = new DeletionIndex(deletions);
+		PhaseTimer timer = metrics.start(Phase.DELETE);
+		int removed = forEachSlotRange(deletions, new SlotRangeWork() {
+			@Override
+			public int process(int range, int fromSlot, int toSlot) {
+				int rowsRemoved = 0;
+				for (int slot = fromSlot; slot < toSlot; slot++) {
+					if (!deletions.isOccupied(slot)) {
+						continue;
+					}
+					long hi = deletions.hiAt(slot);
+					long lo = deletions.loAt(slot);
+					//Removal replaces the history array, so this copy is safe to iterate
+					Rf2Row[] fullRows = full.get(hi, lo);
+					if (fullRows == null) {
+						continue;
+					}
+					for (Rf2Row fullRow : fullRows) {
+						if (deletionIndex.match(hi, lo, fullRow)) {
+							full.remove(hi, lo, fullRow);
+							rowsRemoved++;
+						}
+					}
+				}
+				return rowsRemoved;
+			}
+		});
+		rowsRemoved += removed;
+		unmatchedDeletions += deletionIndex.getUnmatchedCount();
+		metrics.addRowsRemoved(removed);
+		metrics.end(timer, Phase.DELETE, removed, 0);
+	}
+	
+	private void removeLaterEffectiveTime() throws ApplicationException {
+		//Loop through the full file and remove effective times > targetEffectiveTime
+		final ComponentIndex full = fullFile.getComponents();
+		final long maxEffectiveTime = getMaxTargetEffectiveTime();
+		PhaseTimer timer = metrics.start(Phase.TRUNCATE);
+		int truncated = forEachSlotRange(full, new SlotRangeWork() {
+			@Override
+			public int process(int range, int fromSlot, int toSlot) {
+				return full.removeLaterThan(maxEffectiveTime, fromSlot, toSlot);
+			}
+		});
+		metrics.addRowsTruncated(truncated);
+		metrics.end(timer, Phase.TRUNCATE, truncated, 0);
+	}
+	
+	//Components named in the negative delta which are left with no rows have been deleted
+	private void recordDeleted(ComponentIndex deletions, ComponentIndex survivors) {
+		ReferenceIndex references = parent.getReferenceIndex();
+		if (references == null) {
+			return;
+		}
+		for (int slot = 0; slot < deletions.capacity(); slot++) {
+			if (deletions.isOccupied(slot)) {
+				Rf2Row[] history = survivors.get(deletions.hiAt(slot), deletions.loAt(slot));
+				if (history == null || history.length == 0) {
+					references.addDeleted(deletions.hiAt(slot), deletions.loAt(slot));
+				}
+			}
+		}
+	}
+	
+	private static long getSize(Rf2Source source) {
+		return source == null ? 0 : Math.max(0, source.getSize());
+	}
+	
+	//Work over one contiguous range of index slots.  Different ranges hold different components
+	private interface SlotRangeWork {
+		int process(int range, int fromSlot, int toSlot) throws ApplicationException;
+	}
+	
+	/**
+	 * Divides the slots of the index into contiguous ranges and works through them concurrently 
+	 * on the shared fork/join pool, or directly on this thread if the table is not being split.
+	 * @return the sum of the counts returned for each range
+	 */
+	private int forEachSlotRange(ComponentIndex index, final SlotRangeWork work) throws ApplicationException {
+		final int splits = options.getSplits();
+		final int capacity = index.capacity();
+		if (splits <= 1) {
+			return work.process(0, 0, capacity);
+		}
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (int i = 0; i < splits; i++) {
+			final int range = i;
+			final int fromSlot = (int)((long)capacity * i / splits);
+			final int toSlot = (int)((long)capacity * (i + 1) / splits);
+			tasks.add(new Callable<Integer>() {
+				@Override
+				public Integer call() throws ApplicationException {
+					return work.process(range, fromSlot, toSlot);
+				}
+			});
+		}
+		int total = 0;
+		try {
+			for (Future<Integer> result : parent.getForkJoinPool().invokeAll(tasks)) {
+				total += result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ApplicationException("Interrupted while processing " + table.getTableName(), e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ApplicationException) {
+				throw (ApplicationException) e.getCause();
+			}
+			throw new ApplicationException("Failed while processing " + table.getTableName(), e.getCause());
+		}
+		return total;
 	}
 
-	private void outputDelta() throws ApplicationException {
-		PrintWriter deltaOutput = prepareFile(revisedReleaseLocation, TableType.DELTA);
-		export(allComponents, deltaOutput, TableType.DELTA);
+	private void prepareOutputs() throws ApplicationException {
+		//No Full is written when only the Snapshot and Delta are wanted
+		fullOutput = options.isSnapshotOnly() ? null : prepareFile(revisedReleaseLocation, parent.getRevisedReleaseArchive(), TableType.FULL, Output.FULL);
+		snapOutput = prepareFile(revisedReleaseLocation, parent.getRevisedReleaseArchive(), TableType.SNAPSHOT, Output.SNAPSHOT);
+		deltaOutput = prepareFile(revisedReleaseLocation, parent.getRevisedReleaseArchive(), TableType.DELTA, Output.DELTA);
+		snapDeletedOutput = prepareFile(revisedDeletedStateLocation, parent.getRevisedDeletedStateArchive(), TableType.DELTA, Output.NEW_STATE);
 	}
 	
-	private void outputNewStateOfDeletedComponents() throws ApplicationException {
-		PrintWriter snapDeletedOutput = prepareFile(revisedDeletedStateLocation, TableType.DELTA);
-		Set<String> affectedComponents = negativeDelta.getComponents();
-		if (affectedComponents.size() > 0) {
-			print("New state calculated in " + table.getTableName());
+	//Full, Snapshot, Delta and new state, in the order export expects them
+	private Rf2Writer[] getOutputs() {
+		return new Rf2Writer[] {fullOutput, snapOutput, deltaOutput, snapDeletedOutput};
+	}
+	
+	private void closeOutputs() throws ApplicationException {
+		try {
+			Rf2Writer.close(getOutputs());
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to complete output of " + table.getTableName(), e);
+		} finally {
+			recordBytesOut();
 		}
-		export(affectedComponents, snapDeletedOutput, TableType.SNAPSHOT);
 	}
+	
+	//The table has already failed, so any further failure to close is of no interest
+	private void abandonOutputs() {
+		Rf2Writer.closeQuietly(getOutputs());
+		recordBytesOut();
+	}
+	
+	//Counted before any compression
+	private void recordBytesOut() {
+		Rf2Writer[] outputs = getOutputs();
+		for (Output output : Output.values()) {
+			if (outputs[output.ordinal()] != null) {
+				metrics.setBytesOut(output, outputs[output.ordinal()].getBytesWritten());
+			}
+		}
+	}
+	
 
 	public static SnomedTable identifyTable(String fileName, TableType tableType) {
 		for (SnomedTable table : SnomedTable.SnomedTables) {
@@ -146,62 +755,191 @@ public class FileProcessor implements Runnable, SnomedConstants {
 		return null;
 	}
 	
-	private PrintWriter prepareFile(File exportLocation, TableType tableType) throws ApplicationException {
+	/**
+	 * Opens the output either as a loose file in the export location, or directly
+	 * as a compressed entry in the result archive, if one is being built.  When pipelined,
+	 * the output reaches either through a writing stage of its own.
+	 */
+	private Rf2Writer prepareFile(File exportLocation, ArchiveBuilder archive, TableType tableType, Output output) throws ApplicationException {
 		try {
 			String fileName = table.getFilename(edition, "en", getMaxTargetEffectiveTime().toString(), tableType);
-			File outputFile = new File (exportLocation, fileName);
-			print ("Outputting to " + outputFile);
-			GlobalUtils.ensureFileExists(outputFile.getAbsolutePath());
-			PrintWriter out = GlobalUtils.prepareFileToWrite(outputFile);
+			OutputStream stream;
+			if (archive == null) {
+				File outputFile = new File (exportLocation, fileName);
+				print ("Outputting to " + outputFile);
+				GlobalUtils.ensureFileExists(outputFile.getAbsolutePath());
+				stream = new FileOutputStream(outputFile, true);
+			} else {
+				print ("Outputting to " + archive + ":" + fileName);
+				stream = archive.openEntry(fileName);
+			}
+			if (parent.getPipelineStages() != null) {
+				stream = new PipelinedOutputStream(stream, parent.getPipelineStages(), MAX_OUTPUT_CHUNKS_IN_FLIGHT);
+			}
+			Rf2Writer out = new Rf2Writer(stream);
 			//Write the header line
-			GlobalUtils.writeToFile(out, Collections.singletonList(table.getFileHeader()));
+			out.writeLine(table.getFileHeader());
 			return out;
 		} catch (Exception e) {
 			throw new ApplicationException("Failed to prepare file for " + tableType, e);
 		}
 	}
 
-	private synchronized void export(Set<String> components, PrintWriter out, TableType tableType) throws ApplicationException {
-
-		for (String id : components) {
-			switch (tableType) {
-				case FULL : //Output all remaining rows for all components
-					GlobalUtils.writeToFile(out,fullFile.getComponentHistory(id).descendingSet());
-					break;
-				case SNAPSHOT : //Output the most recent row for all components
-					String rowStr = fullFile.getComponentHistory(id).descendingSet().first().toString();
-					//Check for two rows with the same effectiveTime
-					checkForAmbiguity(id);
-					GlobalUtils.writeToFile(out,Collections.singletonList(rowStr));
-					break;
-				case DELTA : //Output rows that are of the target effective time (that of the core, or national edition)
-					for (Rf2Row row : fullFile.getComponentHistory(id).descendingSet()) {
-						if (isTargetEffectiveTime(row.getEffectiveTime())) {
-							GlobalUtils.writeToFile(out,Collections.singletonList(row.toString()));
+	/**
+	 * Visits each component history once, sending rows to the Full, Snapshot and Delta outputs 
+	 * and, for components named in the negative delta, to the new state output, all in the same pass.
+	 * 
+	 * When the table is being split, each range of components is exported to its own set of part 
+	 * files concurrently, and the parts are then appended to the outputs in order.
+	 * 
+	 * @param outputs the Full, Snapshot, Delta and new state outputs.  Any not wanted may be null
+	 */
+	void export(final ComponentIndex full, final Rf2Writer[] outputs) throws ApplicationException {
+		PhaseTimer timer = metrics.start(Phase.EXPORT);
+		if (options.getSplits() <= 1) {
+			int rowsOut = export(full, 0, full.capacity(), outputs[0], outputs[1], outputs[2], outputs[3]);
+			metrics.end(timer, Phase.EXPORT, rowsOut, 0);
+			return;
+		}
+		final File partLocation = Files.createTempDir();
+		try {
+			final File[][] parts = new File[options.getSplits()][];
+			int rowsOut = forEachSlotRange(full, new SlotRangeWork() {
+				@Override
+				public int process(int range, int fromSlot, int toSlot) throws ApplicationException {
+					parts[range] = new File[4];
+					Rf2Writer[] partOut = new Rf2Writer[4];
+					try {
+						for (int i = 0; i < partOut.length; i++) {
+							if (outputs[i] != null) {
+								parts[range][i] = new File(partLocation, range + "_" + i);
+								partOut[i] = Rf2Writer.open(parts[range][i]);
+							}
 						}
+						int rowsOut = export(full, fromSlot, toSlot, partOut[0], partOut[1], partOut[2], partOut[3]);
+						Rf2Writer.close(partOut);
+						return rowsOut;
+					} catch (IOException e) {
+						throw new ApplicationException("Failed to write part " + range + " of " + table.getTableName(), e);
+					} finally {
+						Rf2Writer.closeQuietly(partOut);
+					}
+				}
+			});
+			for (File[] rangeParts : parts) {
+				for (int i = 0; i < outputs.length; i++) {
+					if (outputs[i] == null) {
+						continue;
 					}
+					try {
+						outputs[i].append(rangeParts[i]);
+					} catch (IOException e) {
+						throw new ApplicationException("Failed to append " + rangeParts[i] + " to output of " + table.getTableName(), e);
+					}
+				}
 			}
+			metrics.end(timer, Phase.EXPORT, rowsOut, 0);
+		} finally {
+			GlobalUtils.delete(partLocation);
+		}
+	}
+	
+	/**
+	 * @return the number of rows written, to all outputs
+	 */
+	private int export(ComponentIndex full, int fromSlot, int toSlot, Rf2Writer fullOut, Rf2Writer snapOut, Rf2Writer deltaOut, Rf2Writer snapDeletedOut) throws ApplicationException {
+		ComponentIndex deletions = negativeDelta.getComponents();
+		ReferenceIndex references = parent.getReferenceIndex();
+		int fullRows = 0, snapRows = 0, deltaRows = 0, snapDeletedRows = 0;
+		try {
+			for (int slot = fromSlot; slot < toSlot; slot++) {
+				Rf2Row[] history = full.historyAt(slot);
+				if (history == null || history.length == 0) {
+					//Empty slot, or all rows removed so component no longer exists at this point in time
+					continue;
+				}
+				if (references != null) {
+					//A latest row of a target effectiveTime which refers to a component deleted from another table
+					//is removed as well, and the row before it, now the latest, is checked in turn
+					int kept = history.length;
+					while (kept > 0 && references.check(referenceColumns, history[kept - 1], isTargetEffectiveTime(history[kept - 1].getEffectiveTime()))) {
+						kept--;
+					}
+					if (kept < history.length) {
+						rowsCascaded.addAndGet(history.length - kept);
+						metrics.addRowsRemoved(history.length - kept);
+						history = Arrays.copyOf(history, kept);
+					}
+					if (kept == 0) {
+						componentsCascaded.incrementAndGet();
+						references.addCascaded(full.hiAt(slot), full.loAt(slot));
+						continue;
+					}
+				}
+				//Full - all remaining rows, and Delta - those rows of the target effective time (that of the core, or national edition)
+				for (int i = history.length - 1; i >= 0; i--) {
+					Rf2Row row = history[i];
+					if (fullOut != null) {
+						row.writeTo(fullOut);
+						fullRows++;
+					}
+					if (deltaOut != null && isTargetEffectiveTime(row.getEffectiveTime())) {
+						row.writeTo(deltaOut);
+						deltaRows++;
+					}
+				}
+				//Snapshot - the most recent row, which is also the new state if the component was affected by the negative delta
+				Rf2Row latest = history[history.length - 1];
+				//Check for two rows with the same effectiveTime
+				checkForAmbiguity(history);
+				if (snapOut != null) {
+					latest.writeTo(snapOut);
+					snapRows++;
+				}
+				if (snapDeletedOut != null && deletions.size() > 0 && deletions.contains(full.hiAt(slot), full.loAt(slot))) {
+					latest.writeTo(snapDeletedOut);
+					snapDeletedRows++;
+				}
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to export " + table.getTableName(), e);
 		}
-		out.close();
+		metrics.addRowsOut(Output.FULL, fullRows);
+		metrics.addRowsOut(Output.SNAPSHOT, snapRows);
+		metrics.addRowsOut(Output.DELTA, deltaRows);
+		metrics.addRowsOut(Output.NEW_STATE, snapDeletedRows);
+		return fullRows + snapRows + deltaRows + snapDeletedRows;
 	}
 
-	private boolean isTargetEffectiveTime(Long effectiveTime) {
-		for (String targetEffectiveTime : targetEffectiveTimes) {
-			if (targetEffectiveTime.equals(effectiveTime.toString())) {
+	private boolean isTargetEffectiveTime(long effectiveTime) {
+		for (long targetEffectiveTime : getTargetEffectiveTimeValues()) {
+			if (targetEffectiveTime == effectiveTime) {
 				return true;
 			}
 		}
 		return false;
 	}
+	
+	//Parsed once, so rows can be tested without any String conversion
+	private long[] getTargetEffectiveTimeValues() {
+		if (targetEffectiveTimeValues == null) {
+			long[] values = new long[targetEffectiveTimes.length];
+			for (int i = 0; i < values.length; i++) {
+				values[i] = Long.parseLong(targetEffectiveTimes[i]);
+			}
+			targetEffectiveTimeValues = values;
+		}
+		return targetEffectiveTimeValues;
+	}
 
 	//Check to see if the most recent state is ambiguous ie two rows for the same effectiveTime
-	private void checkForAmbiguity(String id) {
-		Iterator<Rf2Row> rows = fullFile.getComponentHistory(id).iterator();
-		Rf2Row first = rows.next();
-		if (rows.hasNext()) {
-			Rf2Row second = rows.next();
-			if (first.getEffectiveTime() == second.getEffectiveTime()) {
-				print ("** Ambiguity in " + fullFile + ": " + first.toString());
+	private void checkForAmbiguity(Rf2Row[] history) {
+		if (history.length > 1) {
+			//Rows of the same effectiveTime are held in the order read, so the latest one is the last
+			Rf2Row latest = history[history.length - 1];
+			Rf2Row previous = history[history.length - 2];
+			if (latest.getEffectiveTime() == previous.getEffectiveTime()) {
+				print ("** Ambiguity in " + table.getTableName() + ": " + latest.toString());
 			}
 		}
 	}
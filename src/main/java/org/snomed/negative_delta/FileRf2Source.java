@@ -0,0 +1,40 @@
+package org.snomed.negative_delta;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class FileRf2Source implements Rf2Source {
+	
+	private final File file;
+	
+	public FileRf2Source(File file) {
+		this.file = file;
+	}
+
+	@Override
+	public String getName() {
+		return file.getName();
+	}
+
+	@Override
+	public InputStream openStream() throws IOException {
+		return new FileInputStream(file);
+	}
+
+	@Override
+	public long getSize() {
+		return file.length();
+	}
+
+	@Override
+	public File getFile() {
+		return file;
+	}
+	
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+}
@@ -0,0 +1,99 @@
+package org.snomed.negative_delta;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.snomed.ApplicationException;
+
+/**
+ * Reads an RF2 file line by line from any source, holding each row as a String
+ */
+public class LineRf2Reader implements Rf2Reader, SnomedConstants {
+	
+	private final Rf2Source source;
+	private final BufferedReader reader;
+	private final boolean isDeletion;
+	private boolean headerSkipped = false;
+	private String line;
+	private long hi;
+	private long lo;
+	private long effectiveTime;
+	
+	public LineRf2Reader(Rf2Source source, boolean isDeletion) throws ApplicationException {
+		this.source = source;
+		this.isDeletion = isDeletion;
+		try {
+			reader = new BufferedReader(new InputStreamReader(source.openStream(), StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to open " + source, e);
+		}
+	}
+
+	@Override
+	public boolean next() throws ApplicationException {
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!headerSkipped) {
+					headerSkipped = true;
+				} else if (line.length() > Rf2File.MIN_LINE_LENGTH) {
+					decodeKeyFields(line);
+					this.line = line;
+					return true;
+				}
+			}
+			this.line = null;
+			return false;
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to read " + source, e);
+		}
+	}
+
+	private void decodeKeyFields(String line) throws ApplicationException {
+		int idEnd = line.indexOf(FIELD_DELIMITER);
+		int effectiveTimeEnd = line.indexOf(FIELD_DELIMITER, idEnd + 1);
+		if (idEnd < 0 || effectiveTimeEnd < 0) {
+			throw new ApplicationException("Malformed row in " + source.getName() + ": " + line);
+		}
+		String id = line.substring(0, idEnd);
+		hi = ComponentIndex.keyHi(id);
+		lo = ComponentIndex.keyLo(id);
+		try {
+			effectiveTime = Long.parseLong(line.substring(idEnd + 1, effectiveTimeEnd));
+		} catch (NumberFormatException e) {
+			throw new ApplicationException("Invalid effectiveTime in " + source.getName() + ": " + line, e);
+		}
+	}
+
+	@Override
+	public long getHi() {
+		return hi;
+	}
+
+	@Override
+	public long getLo() {
+		return lo;
+	}
+
+	@Override
+	public long getEffectiveTime() {
+		return effectiveTime;
+	}
+
+	@Override
+	public Rf2Row getRow() {
+		return new Rf2Row(line, isDeletion);
+	}
+	
+	@Override
+	public void writeLineTo(Rf2Writer out) throws IOException {
+		out.writeLine(line);
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
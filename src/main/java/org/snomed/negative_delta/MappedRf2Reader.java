@@ -0,0 +1,163 @@
+package org.snomed.negative_delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.snomed.ApplicationException;
+
+/**
+ * Reads an RF2 file through memory mapped segments, scanning for delimiters in place.
+ * Only the component key and effectiveTime are decoded as each line is visited, the 
+ * remainder of the line is left in the mapped file, addressed by offset and length.
+ */
+public class MappedRf2Reader implements Rf2Reader, SnomedConstants {
+	
+	//Segments are cut back to the last line ending, so must be comfortably less than 2GB
+	static int MAX_SEGMENT_SIZE = 1 << 30;
+	private static final byte TAB = '\t';
+	private static final byte LF = '\n';
+	private static final byte CR = '\r';
+	
+	private final File file;
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private int segmentIdx = 0;
+	private MappedByteBuffer segment;
+	private int position;
+	private boolean headerSkipped = false;
+	
+	//State of the current line
+	private int lineStart;
+	private int lineLength;
+	private long hi;
+	private long lo;
+	private long effectiveTime;
+	
+	public MappedRf2Reader(File file) throws ApplicationException {
+		this.file = file;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); 
+				FileChannel channel = raf.getChannel()) {
+			long size = channel.size();
+			long start = 0;
+			while (start < size) {
+				long length = Math.min(size - start, MAX_SEGMENT_SIZE);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+				if (start + length < size) {
+					//Cut the segment back so that no line straddles two segments
+					int lastLineEnd = (int)length - 1;
+					while (lastLineEnd >= 0 && buffer.get(lastLineEnd) != LF) {
+						lastLineEnd--;
+					}
+					if (lastLineEnd < 0) {
+						throw new ApplicationException("No line ending found within " + MAX_SEGMENT_SIZE + " bytes of offset " + start + " in " + file);
+					}
+					length = lastLineEnd + 1;
+					buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+				}
+				segments.add(buffer);
+				start += length;
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to map " + file, e);
+		}
+		segment = segments.isEmpty() ? null : segments.get(0);
+	}
+	
+	@Override
+	public boolean next() throws ApplicationException {
+		while (segment != null) {
+			if (position >= segment.limit()) {
+				segmentIdx++;
+				segment = segmentIdx < segments.size() ? segments.get(segmentIdx) : null;
+				position = 0;
+				continue;
+			}
+			lineStart = position;
+			int end = lineStart;
+			int limit = segment.limit();
+			while (end < limit && segment.get(end) != LF) {
+				end++;
+			}
+			position = end + 1;
+			if (end > lineStart && segment.get(end - 1) == CR) {
+				end--;
+			}
+			lineLength = end - lineStart;
+			if (!headerSkipped) {
+				headerSkipped = true;
+				continue;
+			}
+			if (lineLength > Rf2File.MIN_LINE_LENGTH) {
+				decodeKeyFields();
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void decodeKeyFields() throws ApplicationException {
+		int lineEnd = lineStart + lineLength;
+		int idEnd = indexOf(TAB, lineStart, lineEnd);
+		int effectiveTimeEnd = indexOf(TAB, idEnd + 1, lineEnd);
+		if (idEnd < 0 || effectiveTimeEnd < 0) {
+			throw new ApplicationException("Malformed row in " + file.getName() + ": " + getLineAsString());
+		}
+		hi = ComponentIndex.keyHi(segment, lineStart, idEnd - lineStart);
+		lo = ComponentIndex.keyLo(segment, lineStart, idEnd - lineStart);
+		effectiveTime = 0;
+		for (int i = idEnd + 1; i < effectiveTimeEnd; i++) {
+			int digit = segment.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new ApplicationException("Invalid effectiveTime in " + file.getName() + ": " + getLineAsString());
+			}
+			effectiveTime = effectiveTime * 10 + digit;
+		}
+	}
+	
+	private int indexOf(byte target, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (segment.get(i) == target) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	@Override
+	public Rf2Row getRow() {
+		return new SliceRf2Row(segment, lineStart, lineLength, effectiveTime);
+	}
+	
+	@Override
+	public void writeLineTo(Rf2Writer out) throws IOException {
+		out.writeLine(segment, lineStart, lineLength);
+	}
+	
+	@Override
+	public long getHi() {
+		return hi;
+	}
+	
+	@Override
+	public long getLo() {
+		return lo;
+	}
+	
+	@Override
+	public long getEffectiveTime() {
+		return effectiveTime;
+	}
+	
+	//Mappings are released when the buffers are collected, so there is nothing to close
+	@Override
+	public void close() {
+	}
+	
+	private String getLineAsString() {
+		return SliceRf2Row.decode(segment, lineStart, lineLength);
+	}
+}
@@ -3,9 +3,17 @@ package org.snomed.negative_delta;
 import java.io.*;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.snomed.ApplicationException;
+import org.snomed.util.ArchiveBuilder;
+import org.snomed.util.ArchiveExtractor;
 import org.snomed.util.GlobalUtils;
 
 import com.google.common.io.Files;
@@ -21,14 +29,36 @@ public class NegativeDeltaProcessor implements SnomedConstants {
 	File releaseLocation;
 	File revisedReleaseRoot;
 	File revisedReleaseLocation;
+	
+	//Only used when outputs are compressed straight into the result archives
+	ArchiveBuilder revisedReleaseArchive;
+	ArchiveBuilder revisedDeletedStateArchive;
+	ExecutorService compressors;
+	
+	//Shared by all tables to work on ranges of a single table concurrently
+	ForkJoinPool forkJoinPool;
+	
+	//Runs the reading and writing stages of each table, when pipelined
+	ExecutorService pipelineStages;
+
+	//Either the extracted files, or entries read directly from the archives
+	List<Rf2Source> negativeDeltaSources = new ArrayList<Rf2Source>();
+	List<Rf2Source> releaseSources = new ArrayList<Rf2Source>();
+	List<ZipFile> openArchives = new ArrayList<ZipFile>();
 
 	String[] targetEffectiveTimes;
 	Long maxTargetEffectiveTime;
 	String edition = "INT";
-	private static int MAX_THREADS = 4;
+	ProcessingOptions options = new ProcessingOptions();
+	RunReport runReport = new RunReport();
+	File reportFile;
+	File referenceReport;
+	
+	//Only set when references to deleted components are being looked for
+	ReferenceIndex referenceIndex;
 	
-	List<String> childProcessesPending = new ArrayList<String>();
-	List<String> childProcessesActive = new ArrayList<String>();
+	//Only set when run as one of a batch, in which case the release has already been parsed
+	SharedRelease sharedRelease;
 	Timestamp lastMsg = new Timestamp(System.currentTimeMillis());
 	
 	public static void main(String args[]) throws Exception{
@@ -37,31 +67,133 @@ public class NegativeDeltaProcessor implements SnomedConstants {
 		System.out.println ("Started at " +  startTime);
 		try{
 			app.init(args);
-			app.unzipFiles();
-			app.processNegativeDelta();
-			GlobalUtils.createArchive(app.revisedReleaseRoot);
-			GlobalUtils.createArchive(app.revisedDeletedStateRoot);
+			app.run();
 		} finally {
 			Timestamp now = new Timestamp(System.currentTimeMillis());
 			System.out.println ("\nTime now " + now);
 			System.out.println ("Time taken: " + timeDiff (startTime, now));
+			app.writeReport();
 			app.cleanUp();
 		}
 	}
+	
+	NegativeDeltaProcessor() {
+	}
+	
+	/**
+	 * A run against a release which has already been parsed, as one job of a batch.
+	 * The release archive itself is neither extracted nor read again.
+	 */
+	NegativeDeltaProcessor(SharedRelease sharedRelease, File negativeDeltaArchive, String[] targetEffectiveTimes, String edition, ProcessingOptions options) {
+		this.sharedRelease = sharedRelease;
+		this.releaseArchive = sharedRelease.getReleaseArchive();
+		this.negativeDeltaArchive = negativeDeltaArchive;
+		this.targetEffectiveTimes = targetEffectiveTimes;
+		this.edition = edition;
+		this.options = options;
+		getMaxTargetEffectiveTime();
+	}
+	
+	/**
+	 * Unpacks the archives, processes every table and builds the result archives
+	 */
+	void run() throws ApplicationException {
+		PhaseTimer timer = runReport.start(Phase.UNZIP);
+		//A preview reads each file just once, so there is nothing to gain from extracting them
+		if (options.isDirectFromArchive() || options.isPreview()) {
+			openArchives();
+		} else {
+			unzipFiles();
+		}
+		long bytesUnpacked = negativeDeltaArchive.length() + (sharedRelease == null ? releaseArchive.length() : 0);
+		runReport.end(timer, Phase.UNZIP, 0, bytesUnpacked);
+		if (referenceReport != null) {
+			referenceIndex = new ReferenceIndex(options.isCascade());
+			for (Rf2Source negativeDeltaFile : negativeDeltaSources) {
+				referenceIndex.addCandidates(negativeDeltaFile);
+			}
+		}
+		processNegativeDelta();
+		if (options.isPreview()) {
+			return;
+		}
+		if (referenceIndex != null) {
+			int references = referenceIndex.write(referenceReport);
+			print (references + " references to deleted components written to " + referenceReport);
+		}
+		timer = runReport.start(Phase.ARCHIVE);
+		if (options.isStreamOutput()) {
+			revisedReleaseArchive.build();
+			revisedDeletedStateArchive.build();
+		} else {
+			GlobalUtils.createArchive(revisedReleaseRoot);
+			GlobalUtils.createArchive(revisedDeletedStateRoot);
+		}
+		runReport.end(timer, Phase.ARCHIVE, 0, 0);
+	}
 
 	private void unzipFiles() throws ApplicationException {
-		negativeDeltaLocation = Files.createTempDir();
-		print("Unzipping Negative Delta Archive " + negativeDeltaArchive.getAbsolutePath() + " to " + negativeDeltaLocation.getAbsolutePath());
-		GlobalUtils.unzipFlat(negativeDeltaArchive, negativeDeltaLocation, new String[]{DELTA});
-		
-		releaseLocation = Files.createTempDir();
-		print("Unzipping Release Archive " + releaseArchive.getAbsolutePath() + " to " + releaseLocation.getAbsolutePath());
-		GlobalUtils.unzipFlat(releaseArchive, releaseLocation, new String[]{FULL});
+		ExecutorService extractors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			ArchiveExtractor extractor = new ArchiveExtractor(extractors);
+			negativeDeltaLocation = Files.createTempDir();
+			print("Unzipping Negative Delta Archive " + negativeDeltaArchive.getAbsolutePath() + " to " + negativeDeltaLocation.getAbsolutePath());
+			for (File f : extractor.extractFlat(negativeDeltaArchive, negativeDeltaLocation, new String[]{DELTA})) {
+				negativeDeltaSources.add(new FileRf2Source(f));
+			}
+			
+			if (sharedRelease != null) {
+				releaseSources = sharedRelease.getSources();
+				return;
+			}
+			releaseLocation = Files.createTempDir();
+			print("Unzipping Release Archive " + releaseArchive.getAbsolutePath() + " to " + releaseLocation.getAbsolutePath());
+			for (File f : extractor.extractFlat(releaseArchive, releaseLocation, new String[]{FULL})) {
+				releaseSources.add(new FileRf2Source(f));
+			}
+		} finally {
+			extractors.shutdown();
+		}
+	}
+	
+	private void openArchives() throws ApplicationException {
+		print("Reading Negative Delta directly from " + negativeDeltaArchive.getAbsolutePath());
+		negativeDeltaSources = listArchive(negativeDeltaArchive, DELTA, openArchives);
+		if (sharedRelease != null) {
+			releaseSources = sharedRelease.getSources();
+			return;
+		}
+		print("Reading Release directly from " + releaseArchive.getAbsolutePath());
+		releaseSources = listArchive(releaseArchive, FULL, openArchives);
+	}
+	
+	/**
+	 * @param openArchives to which the opened archive is added, to be closed once finished with
+	 */
+	static List<Rf2Source> listArchive(File archive, String match, List<ZipFile> openArchives) throws ApplicationException {
+		List<Rf2Source> sources = new ArrayList<Rf2Source>();
+		try {
+			ZipFile zipFile = new ZipFile(archive);
+			openArchives.add(zipFile);
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (!entry.isDirectory()) {
+					ZipEntryRf2Source source = new ZipEntryRf2Source(zipFile, entry);
+					if (source.getName().contains(match)) {
+						sources.add(source);
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to open archive " + archive.getName(), e);
+		}
+		return sources;
 	}
 
 	private void init(String[] args) throws SQLException, ClassNotFoundException {
-		if (args.length < 3) {
-			print ("Usage NegativeDeltaProcessor <originalArchive> <negativeDeltaArchive> <targetEffectiveTime> <edition eg INT or US_1000024>");
+		if (args.length < 4) {
+			print ("Usage NegativeDeltaProcessor <originalArchive> <negativeDeltaArchive> <targetEffectiveTime> <edition eg INT or US_1000024>" + ProcessingOptions.USAGE);
 			System.exit(-1);
 		}
 		
@@ -80,45 +212,98 @@ public class NegativeDeltaProcessor implements SnomedConstants {
 		targetEffectiveTimes= args[2].split(",");
 		getMaxTargetEffectiveTime();
 		edition = args[3];
+		runReport.setArgs(args);
 		
+		try {
+			options = ProcessingOptions.parse(args, 4);
+		} catch (ApplicationException e) {
+			print (e.getMessage());
+			System.exit(-1);
+		}
+		reportFile = options.getReportFile();
+		referenceReport = options.getReferenceReport();
+		if (!options.isPreview()) {
+			prepareOutputLocations();
+		}
+	}
+	
+	void prepareOutputLocations() {
 		revisedReleaseRoot = Files.createTempDir();
 		revisedReleaseLocation = new File (revisedReleaseRoot, "SnomedCT_" + edition + "_" + maxTargetEffectiveTime);
 		
 		revisedDeletedStateRoot = Files.createTempDir();
 		revisedDeletedStateLocation = new File (revisedDeletedStateRoot, "SnomedCT_NewState_" + edition + "_" + maxTargetEffectiveTime);
+		
+		if (options.getSplits() > 1) {
+			forkJoinPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		
+		if (options.isPipelined()) {
+			pipelineStages = Executors.newCachedThreadPool();
+		}
+		
+		if (options.isStreamOutput()) {
+			int compressionThreads = Runtime.getRuntime().availableProcessors();
+			compressors = Executors.newFixedThreadPool(compressionThreads);
+			revisedReleaseArchive = new ArchiveBuilder(revisedReleaseLocation.getName(), revisedReleaseRoot, compressors, compressionThreads);
+			revisedDeletedStateArchive = new ArchiveBuilder(revisedDeletedStateLocation.getName(), revisedDeletedStateRoot, compressors, compressionThreads);
+		}
 	}
 
 	private void processNegativeDelta() throws ApplicationException {
 		//Work through each file in the release, pair it with a delta release
-		//and send it off for asynchronous processing in a separate thread
-		for (File fullFile : releaseLocation.listFiles()) {
+		//and schedule it for asynchronous processing
+		List<FileProcessor> jobs = new ArrayList<FileProcessor>();
+		for (Rf2Source fullFile : releaseSources) {
 			SnomedTable table = FileProcessor.identifyTable(fullFile.getName(), TableType.FULL);
 			if (table == null) {
 				print ("Skipping unrecognised file: " + fullFile, false);
 			} else {
-				File negativeDeltaFile = getNegativeDeltaFile(table);
-				FileProcessor.processFile(negativeDeltaFile, 
+				Rf2Source negativeDeltaFile = getNegativeDeltaFile(table);
+				FileProcessor job = FileProcessor.create(negativeDeltaFile, 
 						fullFile, 
 						revisedReleaseLocation, 
 						revisedDeletedStateLocation, 
 						targetEffectiveTimes, 
 						this,
 						edition);
+				if (job != null) {
+					jobs.add(job);
+				}
 			}
 		}
-		//Wait for all processes to complete
-		try {
-			do{
-				Thread.sleep (5 * 1000);
-			} while (childProcessesActive.size() > 0 || childProcessesPending.size() > 0);
-		} catch (InterruptedException e) {
-			throw new ApplicationException("Failed to wait for processes to complete",e);
+		TableScheduler scheduler = new TableScheduler(options.getThreads(), options.getHeapBudget());
+		if (referenceIndex == null || !referenceIndex.isCascade()) {
+			scheduler.runAll(jobs);
+			if (options.isPreview()) {
+				printPreview(jobs);
+			}
+			return;
 		}
-		print ("All parallel processes complete.", false);
+		//Each tier must be complete before the next, so that what it deletes can be cascaded
+		for (int tier = 0; tier <= ReferenceIndex.MAX_TIER; tier++) {
+			List<FileProcessor> tierJobs = new ArrayList<FileProcessor>();
+			for (FileProcessor job : jobs) {
+				if (ReferenceIndex.getTier(job.getTable()) == tier) {
+					tierJobs.add(job);
+				}
+			}
+			scheduler.runAll(tierJobs);
+		}
+	}
+
+	private void printPreview(List<FileProcessor> jobs) {
+		List<String> changed = new ArrayList<String>();
+		for (FileProcessor job : jobs) {
+			if (job.isChanged()) {
+				changed.add(job.getTableName());
+			}
+		}
+		print ("Preview complete, nothing written.  " + changed.size() + " of " + jobs.size() + " tables would change: " + changed);
 	}
 
-	private File getNegativeDeltaFile(SnomedTable table) {
-		for (File f : negativeDeltaLocation.listFiles()) {
+	private Rf2Source getNegativeDeltaFile(SnomedTable table) {
+		for (Rf2Source f : negativeDeltaSources) {
 			if (f.getName().contains(table.getFilenamePart(TableType.DELTA))) {
 				return f;
 			}
@@ -149,31 +334,75 @@ public class NegativeDeltaProcessor implements SnomedConstants {
 		return String.format("%02d:%02d", minutes, seconds);
 	}
 
-	private void cleanUp() {
+	//Written even if the run failed, as the report then shows how far each table got
+	void writeReport() {
+		if (reportFile != null) {
+			try {
+				runReport.write(reportFile);
+			} catch (ApplicationException e) {
+				print (e.getMessage(), false);
+			}
+		}
+	}
+
+	void cleanUp() {
 		print("Cleaning up...");
 		GlobalUtils.delete(negativeDeltaLocation);
 		GlobalUtils.delete(releaseLocation);
 		GlobalUtils.delete(revisedReleaseRoot);
 		GlobalUtils.delete(revisedDeletedStateRoot);
-	}
-
-	public synchronized void registerChild(String tableName, boolean pending) {
-		if (pending) {
-			childProcessesPending.add(tableName);
-		} else {
-			print ("Starting process " + tableName, false);
-			childProcessesPending.remove(tableName);
-			childProcessesActive.add(tableName);
+		if (compressors != null) {
+			compressors.shutdownNow();
+		}
+		if (forkJoinPool != null) {
+			forkJoinPool.shutdownNow();
+		}
+		if (pipelineStages != null) {
+			pipelineStages.shutdownNow();
+		}
+		for (ZipFile archive : openArchives) {
+			try {
+				archive.close();
+			} catch (IOException e) {
+				print ("Failed to close " + archive.getName() + ": " + e.getMessage(), false);
+			}
 		}
 	}
 
-	public synchronized void releaseChild(String tableName, String result) {
-		print (tableName + " process " + result, false);
-		childProcessesActive.remove(tableName);
+	ArchiveBuilder getRevisedReleaseArchive() {
+		return revisedReleaseArchive;
+	}
+	
+	ArchiveBuilder getRevisedDeletedStateArchive() {
+		return revisedDeletedStateArchive;
+	}
+	
+	String getReleaseIdentity() {
+		return ReleaseImage.identify(releaseArchive);
+	}
+	
+	ReferenceIndex getReferenceIndex() {
+		return referenceIndex;
+	}
+	
+	SharedRelease getSharedRelease() {
+		return sharedRelease;
+	}
+	
+	ForkJoinPool getForkJoinPool() {
+		return forkJoinPool;
+	}
+	
+	ExecutorService getPipelineStages() {
+		return pipelineStages;
+	}
+	
+	ProcessingOptions getOptions() {
+		return options;
 	}
 	
-	public synchronized boolean hasSpareCapacity() {
-		return childProcessesActive.size() < MAX_THREADS;
+	RunReport getRunReport() {
+		return runReport;
 	}
 	
 	Long getMaxTargetEffectiveTime() {
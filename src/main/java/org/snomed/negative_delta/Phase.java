@@ -0,0 +1,7 @@
+package org.snomed.negative_delta;
+
+/**
+ * Stages of a run which are timed.  UNZIP and ARCHIVE apply to the run as a whole, the 
+ * others to each table.
+ */
+public enum Phase { UNZIP, LOAD, DELETE, TRUNCATE, EXPORT, ARCHIVE }
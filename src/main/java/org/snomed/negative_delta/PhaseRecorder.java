@@ -0,0 +1,14 @@
+package org.snomed.negative_delta;
+
+/**
+ * Mirrors each timed phase as an event of some other recorder, such as JFR.
+ */
+interface PhaseRecorder {
+	
+	/**
+	 * @return the event begun, to be passed back to commit once the phase ends
+	 */
+	Object begin(String scope, Phase phase);
+	
+	void commit(Object event, long rows, long bytes);
+}
@@ -0,0 +1,45 @@
+package org.snomed.negative_delta;
+
+/**
+ * Times a single phase, and mirrors it as a JFR event where the build includes the JFR
+ * event (compiled on JDK 11 or later) and the running JVM supports them.
+ * 
+ * Usage: PhaseTimer timer = PhaseTimer.start("concept", Phase.LOAD); ... long nanos = timer.end(rows, bytes);
+ */
+public class PhaseTimer {
+	
+	private static final String JFR_RECORDER = "org.snomed.negative_delta.PhaseEvent$Recorder";
+	private static final PhaseRecorder RECORDER = loadRecorder();
+	
+	private final long startNanos = System.nanoTime();
+	//Held as an Object so that this class still loads on JVMs without JFR
+	private final Object event;
+	
+	private PhaseTimer(String scope, Phase phase) {
+		event = RECORDER != null ? RECORDER.begin(scope, phase) : null;
+	}
+	
+	public static PhaseTimer start(String scope, Phase phase) {
+		return new PhaseTimer(scope, phase);
+	}
+	
+	/**
+	 * @return the duration of the phase in nanoseconds
+	 */
+	public long end(long rows, long bytes) {
+		if (event != null) {
+			RECORDER.commit(event, rows, bytes);
+		}
+		return System.nanoTime() - startNanos;
+	}
+	
+	//Neither JFR nor the event built on it need be present
+	private static PhaseRecorder loadRecorder() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (PhaseRecorder) Class.forName(JFR_RECORDER).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+}
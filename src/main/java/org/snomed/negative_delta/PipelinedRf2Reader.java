@@ -0,0 +1,251 @@
+package org.snomed.negative_delta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.snomed.ApplicationException;
+
+/**
+ * Runs another reader on a separate stage, which reads and parses rows in batches while the
+ * caller is still working on earlier ones, such as adding them to the index.  At most
+ * MAX_BATCHES_IN_FLIGHT batches are held between the two, so a caller which falls behind
+ * holds up the reading rather than letting parsed rows pile up on the heap.
+ *
+ * Every row is parsed ahead of time, so this only suits callers which keep every row.  Rows
+ * bound for a ColumnarTable are the exception: the table may not be read while rows are added
+ * to it, so the reading stage hands over each line's bytes and the caller adds them in next().
+ */
+public class PipelinedRf2Reader implements Rf2Reader {
+
+	static final int BATCH_SIZE = 1024;
+	static final int MAX_BATCHES_IN_FLIGHT = 8;
+	//How often a stage waiting on the other checks whether it has been stopped
+	private static final long POLL_MILLIS = 100;
+
+	private final Rf2Reader source;
+	//Set when lines are handed over for the caller to add to the source's store
+	private final ArenaRf2Reader lineSource;
+	private RowStore store;
+	private final BlockingQueue<RowBatch> batches = new ArrayBlockingQueue<RowBatch>(MAX_BATCHES_IN_FLIGHT);
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private volatile boolean stopped = false;
+	private RowBatch current;
+	private int position;
+
+	private static class RowBatch {
+		final long[] his = new long[BATCH_SIZE];
+		final long[] los = new long[BATCH_SIZE];
+		final Rf2Row[] rows = new Rf2Row[BATCH_SIZE];
+		int size = 0;
+		boolean last = false;
+		Exception failure;
+		//Lines left for the caller to add, one after another
+		RowStore store;
+		byte[] lines;
+		int linesLength = 0;
+		final int[] lineStarts;
+		final int[] lineLengths;
+		final long[] effectiveTimes;
+		
+		RowBatch(boolean deferred) {
+			lines = deferred ? new byte[BATCH_SIZE * 128] : null;
+			lineStarts = deferred ? new int[BATCH_SIZE] : null;
+			lineLengths = deferred ? new int[BATCH_SIZE] : null;
+			effectiveTimes = deferred ? new long[BATCH_SIZE] : null;
+		}
+		
+		void addLine(ArenaRf2Reader source) {
+			int length = source.getLineLength();
+			if (linesLength + length > lines.length) {
+				lines = Arrays.copyOf(lines, Math.max(lines.length * 2, linesLength + length));
+			}
+			source.copyLineTo(lines, linesLength);
+			lineStarts[size] = linesLength;
+			lineLengths[size] = length;
+			effectiveTimes[size] = source.getEffectiveTime();
+			linesLength += length;
+			store = source.getStore();
+		}
+	}
+
+	public PipelinedRf2Reader(Rf2Reader source, ExecutorService stages) {
+		this.source = source;
+		boolean deferred = source instanceof ArenaRf2Reader && ((ArenaRf2Reader) source).deferRows();
+		lineSource = deferred ? (ArenaRf2Reader) source : null;
+		stages.execute(new Runnable() {
+			@Override
+			public void run() {
+				readAhead();
+			}
+		});
+	}
+
+	private void readAhead() {
+		RowBatch batch = new RowBatch(lineSource != null);
+		try {
+			while (!stopped && source.next()) {
+				batch.his[batch.size] = source.getHi();
+				batch.los[batch.size] = source.getLo();
+				if (lineSource != null) {
+					batch.addLine(lineSource);
+				} else {
+					batch.rows[batch.size] = source.getRow();
+				}
+				if (++batch.size == BATCH_SIZE) {
+					put(batch);
+					batch = new RowBatch(lineSource != null);
+				}
+			}
+			//Closed before the last batch is handed over, so that any failure to close is reported
+			source.close();
+			batch.last = true;
+		} catch (ApplicationException | IOException | RuntimeException e) {
+			closeQuietly();
+			batch.size = 0;
+			batch.last = true;
+			batch.failure = e;
+		}
+		try {
+			put(batch);
+		} finally {
+			finished.countDown();
+		}
+	}
+
+	//Waits for room, unless the caller has stopped taking batches
+	private void put(RowBatch batch) {
+		try {
+			while (!stopped && !batches.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				//Caller is behind, so wait for it to catch up
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			stopped = true;
+		}
+	}
+
+	private void closeQuietly() {
+		try {
+			source.close();
+		} catch (IOException e) {
+			//Already failing
+		}
+	}
+
+	@Override
+	public boolean next() throws ApplicationException {
+		if (current != null && ++position < current.size) {
+			return true;
+		}
+		while (current == null || !current.last) {
+			current = takeBatch();
+			if (current.failure instanceof ApplicationException) {
+				throw (ApplicationException) current.failure;
+			} else if (current.failure != null) {
+				throw new ApplicationException("Failed to read ahead", current.failure);
+			}
+			position = 0;
+			addLines(current);
+			if (current.size > 0) {
+				return true;
+			}
+		}
+		//Every line has been added, so the store can give up what it reserved for more
+		if (store != null) {
+			store.trim();
+			store = null;
+		}
+		return false;
+	}
+	
+	//Adds the lines handed over to the store on this thread, the only one to add to it
+	private void addLines(RowBatch batch) {
+		if (batch.store == null) {
+			return;
+		}
+		store = batch.store;
+		ByteBuffer lines = ByteBuffer.wrap(batch.lines);
+		for (int i = 0; i < batch.size; i++) {
+			batch.rows[i] = store.add(lines, batch.lineStarts[i], batch.lineLengths[i], batch.effectiveTimes[i]);
+		}
+		batch.lines = null;
+	}
+
+	/**
+	 * Waits for the next batch, checking that the reading stage is still there to hand it over.
+	 * One interrupted while waiting for room gives up without handing over its last batch.
+	 */
+	private RowBatch takeBatch() throws ApplicationException {
+		try {
+			while (true) {
+				RowBatch batch = batches.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (batch != null) {
+					return batch;
+				}
+				if (finished.getCount() == 0) {
+					//Anything handed over just before finishing is still taken
+					batch = batches.poll();
+					if (batch != null) {
+						return batch;
+					}
+					throw new ApplicationException("Reading ahead stopped before the last rows were handed over");
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ApplicationException("Interrupted while reading ahead", e);
+		}
+	}
+
+	@Override
+	public long getHi() {
+		return current.his[position];
+	}
+
+	@Override
+	public long getLo() {
+		return current.los[position];
+	}
+
+	@Override
+	public long getEffectiveTime() {
+		return current.rows[position].getEffectiveTime();
+	}
+
+	/**
+	 * @return the row parsed by the reading stage
+	 */
+	@Override
+	public Rf2Row getRow() {
+		return current.rows[position];
+	}
+
+	@Override
+	public void writeLineTo(Rf2Writer out) throws IOException {
+		current.rows[position].writeTo(out);
+	}
+
+	/**
+	 * Stops the reading stage if it is still running, and waits for it to close the source
+	 */
+	@Override
+	public void close() throws IOException {
+		stopped = true;
+		try {
+			//Discard anything read ahead, so that the reading stage is not left waiting for room
+			while (!finished.await(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+				batches.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while stopping read ahead", e);
+		}
+		batches.clear();
+	}
+}
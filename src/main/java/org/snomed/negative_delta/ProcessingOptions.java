@@ -0,0 +1,251 @@
+package org.snomed.negative_delta;
+
+import java.io.File;
+
+import org.snomed.ApplicationException;
+
+/**
+ * Optional switches supplied after the positional arguments, eg
+ * NegativeDeltaProcessor <originalArchive> <negativeDeltaArchive> <targetEffectiveTime> <edition> -partitions 16
+ */
+public class ProcessingOptions {
+	
+	public static final String USAGE = " [-threads <n>] [-heapBudget <mb>] [-partitions <n>] [-splits <n>] [-storage heap|mapped|offheap|columnar] [-direct] [-streamOutput] [-pipeline] [-image <dir>] [-snapshotOnly] [-selective] [-report <file>] [-references <file>] [-cascade] [-preview]";
+	
+	//How the text of each Full row is held once loaded
+	public enum RowStorage { HEAP, MAPPED, OFFHEAP, COLUMNAR };
+	
+	//Number of tables processed concurrently
+	int threads = 4;
+	
+	//Heap that the tables in progress may be estimated to need between them.  0 = three quarters of the max heap
+	int heapBudgetMb = 0;
+	
+	//Number of on-disk spill buckets each table is split into.  1 = process the table wholly in memory
+	int partitions = 1;
+	
+	//Number of component ranges each table is divided into, to be worked on concurrently
+	int splits = 1;
+	
+	RowStorage storage = RowStorage.HEAP;
+	
+	//Read tables straight from the archives rather than extracting them to a temp directory first
+	boolean directFromArchive = false;
+	
+	//Compress outputs straight into the result archives, rather than writing loose files to be zipped afterwards
+	boolean streamOutput = false;
+	
+	//Read and write each table on stages of their own, overlapping with the work on the rows in between
+	boolean pipeline = false;
+	
+	//Directory holding precompiled binary images of parsed Full files, reused by later runs against the same release
+	File imageLocation;
+	
+	//Stream each Full file once, keeping only what is needed for the Snapshot and Delta, and write no Full
+	boolean snapshotOnly = false;
+	
+	//Parse only the components named in the negative delta, passing rows of all others straight through
+	boolean selective = false;
+	
+	//JSON report of per-table timings and counts
+	File reportFile;
+	
+	//Report of rows in any table which still refer to a component that has been deleted
+	File referenceReport;
+	
+	//Remove the rows which refer to a deleted component, rather than just reporting them
+	boolean cascade = false;
+	
+	//Count what the negative delta would change in each table, without writing anything
+	boolean preview = false;
+	
+	public static ProcessingOptions parse(String[] args, int startIdx) throws ApplicationException {
+		ProcessingOptions options = new ProcessingOptions();
+		for (int idx = startIdx; idx < args.length; idx++) {
+			String flag = args[idx];
+			switch (flag) {
+				case "-threads" : 
+					options.threads = parsePositiveInt(flag, args, ++idx);
+					break;
+				case "-heapBudget" :
+					options.heapBudgetMb = parsePositiveInt(flag, args, ++idx);
+					break;
+				case "-partitions" : 
+					options.partitions = parsePositiveInt(flag, args, ++idx);
+					break;
+				case "-splits" :
+					options.splits = parsePositiveInt(flag, args, ++idx);
+					break;
+				case "-storage" :
+					options.storage = parseEnum(RowStorage.class, flag, args, ++idx);
+					break;
+				case "-direct" :
+					options.directFromArchive = true;
+					break;
+				case "-streamOutput" :
+					options.streamOutput = true;
+					break;
+				case "-pipeline" :
+					options.pipeline = true;
+					break;
+				case "-image" :
+					if (++idx >= args.length) {
+						throw new ApplicationException("Option " + flag + " requires a value");
+					}
+					options.imageLocation = new File(args[idx]);
+					break;
+				case "-snapshotOnly" :
+					options.snapshotOnly = true;
+					break;
+				case "-selective" :
+					options.selective = true;
+					break;
+				case "-report" :
+					if (++idx >= args.length) {
+						throw new ApplicationException("Option " + flag + " requires a value");
+					}
+					options.reportFile = new File(args[idx]);
+					break;
+				case "-references" :
+					if (++idx >= args.length) {
+						throw new ApplicationException("Option " + flag + " requires a value");
+					}
+					options.referenceReport = new File(args[idx]);
+					break;
+				case "-cascade" :
+					options.cascade = true;
+					break;
+				case "-preview" :
+					options.preview = true;
+					break;
+				default : 
+					throw new ApplicationException("Unrecognised option: " + flag);
+			}
+		}
+		if (options.imageLocation != null) {
+			if (options.storage == RowStorage.MAPPED) {
+				throw new ApplicationException("-image reads the release directly from its archive, so cannot be used with -storage mapped");
+			}
+			//A current image leaves nothing to parse, so extracting the release would be wasted
+			options.directFromArchive = true;
+		}
+		if (options.directFromArchive && options.storage == RowStorage.MAPPED) {
+			throw new ApplicationException("-storage mapped requires files extracted to disk, so cannot be used with -direct");
+		}
+		if (options.imageLocation != null && options.isPartitioned()) {
+			throw new ApplicationException("-image holds whole tables, so cannot be used with -partitions");
+		}
+		if (options.imageLocation != null && options.snapshotOnly) {
+			throw new ApplicationException("-image holds full component history, which -snapshotOnly never builds");
+		}
+		if (options.imageLocation != null && options.selective) {
+			throw new ApplicationException("-image holds whole tables, which -selective never builds");
+		}
+		if (options.cascade && options.referenceReport == null) {
+			throw new ApplicationException("-cascade requires -references, to record what is removed");
+		}
+		if (options.preview && options.referenceReport != null) {
+			throw new ApplicationException("-preview exports nothing, so cannot collect -references");
+		}
+		if (options.cascade && options.selective) {
+			throw new ApplicationException("-selective passes rows through before they can be checked, so cannot be used with -cascade");
+		}
+		return options;
+	}
+	
+	private static int parsePositiveInt(String flag, String[] args, int idx) throws ApplicationException {
+		if (idx >= args.length) {
+			throw new ApplicationException("Option " + flag + " requires a value");
+		}
+		try {
+			int value = Integer.parseInt(args[idx]);
+			if (value < 1) {
+				throw new ApplicationException("Option " + flag + " must be at least 1, received " + value);
+			}
+			return value;
+		} catch (NumberFormatException e) {
+			throw new ApplicationException("Option " + flag + " expects a number, received " + args[idx], e);
+		}
+	}
+
+	private static <T extends Enum<T>> T parseEnum(Class<T> type, String flag, String[] args, int idx) throws ApplicationException {
+		if (idx >= args.length) {
+			throw new ApplicationException("Option " + flag + " requires a value");
+		}
+		try {
+			return Enum.valueOf(type, args[idx].toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new ApplicationException("Option " + flag + " does not recognise value " + args[idx], e);
+		}
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * @return in bytes
+	 */
+	public long getHeapBudget() {
+		if (heapBudgetMb == 0) {
+			return Runtime.getRuntime().maxMemory() / 4 * 3;
+		}
+		return heapBudgetMb * 1024L * 1024L;
+	}
+	
+	public int getPartitions() {
+		return partitions;
+	}
+	
+	public boolean isPartitioned() {
+		return partitions > 1;
+	}
+	
+	public int getSplits() {
+		return splits;
+	}
+	
+	public RowStorage getStorage() {
+		return storage;
+	}
+	
+	public boolean isDirectFromArchive() {
+		return directFromArchive;
+	}
+	
+	public boolean isStreamOutput() {
+		return streamOutput;
+	}
+	
+	public boolean isPipelined() {
+		return pipeline;
+	}
+	
+	public File getImageLocation() {
+		return imageLocation;
+	}
+	
+	public boolean isSnapshotOnly() {
+		return snapshotOnly;
+	}
+	
+	public boolean isSelective() {
+		return selective;
+	}
+	
+	public File getReportFile() {
+		return reportFile;
+	}
+	
+	public File getReferenceReport() {
+		return referenceReport;
+	}
+	
+	public boolean isCascade() {
+		return cascade;
+	}
+	
+	public boolean isPreview() {
+		return preview;
+	}
+}
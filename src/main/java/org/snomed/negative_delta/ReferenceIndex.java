@@ -0,0 +1,222 @@
+package org.snomed.negative_delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.snomed.ApplicationException;
+import org.snomed.util.GlobalUtils;
+
+/**
+ * Reverse index from the components which the negative deltas may delete to the rows of other
+ * tables which still refer to them, through any of the REFERENCE_COLUMNS.  Only references to
+ * these candidates are kept, so the index stays in proportion to the negative deltas rather than
+ * to the release.  References are recorded by each table as it exports its surviving rows, and
+ * tables record which candidates were left with no rows, so once every table is complete the
+ * dangling references are known without reading the release again.
+ *
+ * When cascading, a row of a target effectiveTime which refers to a component already known to
+ * be deleted is removed, and the row before it, now the latest, is checked in turn.  A component
+ * left with no rows is then itself treated as deleted.  Tables must then be processed in the
+ * order given by getTier, so that deletions are known before the tables which refer to them
+ * are exported.
+ *
+ * Shared by all tables, so safe for concurrent use.
+ */
+public class ReferenceIndex implements SnomedConstants {
+
+	public static final String[] REFERENCE_COLUMNS = new String[] { "conceptId", "sourceId", "destinationId", "referencedComponentId", "targetComponentId", "valueId" };
+	public static final int MAX_TIER = 2;
+	private static final String REFERENCED_COMPONENT_ID = "referencedComponentId";
+	private static final String REPORT_HEADER = "deletedComponentId\ttable\tcolumn\treferencingId\treferencingActive\taction";
+
+	private final boolean cascade;
+	//SCTIDs only, as nothing refers to a refset member
+	private final Set<Long> candidates = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private final Set<Long> deleted = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private final Queue<Reference> references = new ConcurrentLinkedQueue<Reference>();
+
+	private static class Reference {
+		long referencedId;
+		String tableName;
+		String column;
+		String referencingId;
+		String active;
+		boolean removed;
+	}
+
+	/**
+	 * The positions of the reference columns within the rows of one table
+	 */
+	public static class Columns {
+		final String tableName;
+		final int[] positions;
+		final String[] names;
+		final int activePosition;
+
+		public Columns(SnomedTable table) {
+			this.tableName = table.getTableName();
+			String[] header = table.getFileHeader().split(FIELD_DELIMITER);
+			List<Integer> found = new ArrayList<Integer>();
+			int active = -1;
+			for (int i = 0; i < header.length; i++) {
+				for (String column : REFERENCE_COLUMNS) {
+					if (column.equals(header[i])) {
+						found.add(i);
+					}
+				}
+				if ("active".equals(header[i])) {
+					active = i;
+				}
+			}
+			positions = new int[found.size()];
+			names = new String[found.size()];
+			for (int i = 0; i < positions.length; i++) {
+				positions[i] = found.get(i);
+				names[i] = header[positions[i]];
+			}
+			activePosition = active;
+		}
+
+		public boolean isEmpty() {
+			return positions.length == 0;
+		}
+	}
+
+	public ReferenceIndex(boolean cascade) {
+		this.cascade = cascade;
+	}
+
+	/**
+	 * Takes every component named in the negative delta as a candidate for deletion
+	 */
+	public void addCandidates(Rf2Source negativeDelta) throws ApplicationException {
+		try (Rf2Reader reader = new LineRf2Reader(negativeDelta, true)) {
+			while (reader.next()) {
+				if (reader.getHi() == 0L) {
+					candidates.add(reader.getLo());
+				}
+			}
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to read " + negativeDelta, e);
+		}
+	}
+
+	public boolean isCascade() {
+		return cascade;
+	}
+
+	/**
+	 * Records that the component no longer has any rows at the target effectiveTime
+	 */
+	public void addDeleted(long hi, long lo) {
+		if (hi == 0L && candidates.contains(lo)) {
+			deleted.add(lo);
+		}
+	}
+
+	/**
+	 * Records that cascading has left the component with no rows, so that it is deleted in turn
+	 */
+	public void addCascaded(long hi, long lo) {
+		if (hi == 0L) {
+			candidates.add(lo);
+			deleted.add(lo);
+		}
+	}
+
+	/**
+	 * Records any reference which the row makes to a candidate for deletion.  Only the reference
+	 * columns are read from the row, so rows held as bytes or columns are not decoded.
+	 * @param removable whether the row may be removed, being of a target effectiveTime
+	 * @return true if cascading, the row is removable and it refers to a component already
+	 * deleted, in which case the caller is to remove the row.
+	 */
+	public boolean check(Columns columns, Rf2Row row, boolean removable) {
+		if (candidates.isEmpty() || columns.isEmpty()) {
+			return false;
+		}
+		List<Reference> found = null;
+		boolean remove = false;
+		for (int next = 0; next < columns.positions.length; next++) {
+			long referencedId = row.getSctidField(columns.positions[next]);
+			if (referencedId >= 0 && candidates.contains(referencedId)) {
+				Reference reference = new Reference();
+				reference.referencedId = referencedId;
+				reference.tableName = columns.tableName;
+				reference.column = columns.names[next];
+				reference.referencingId = row.getId();
+				reference.active = columns.activePosition < 0 ? "" : row.getField(columns.activePosition);
+				remove |= cascade && removable && deleted.contains(referencedId);
+				if (found == null) {
+					found = new ArrayList<Reference>(columns.positions.length);
+				}
+				found.add(reference);
+			}
+		}
+		if (found == null) {
+			return false;
+		}
+		//Each reference the row makes is then resolved along with the row
+		for (Reference reference : found) {
+			reference.removed = remove;
+			references.add(reference);
+		}
+		return remove;
+	}
+
+	/**
+	 * Tables are cascaded in three tiers: those that refer to nothing, then those that refer only
+	 * to concepts, then the refsets, which may refer to descriptions and relationships.
+	 */
+	public static int getTier(SnomedTable table) {
+		Columns columns = new Columns(table);
+		if (columns.isEmpty()) {
+			return 0;
+		}
+		for (String name : columns.names) {
+			if (REFERENCED_COMPONENT_ID.equals(name)) {
+				return MAX_TIER;
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Writes every reference to a deleted component, and what was done about it
+	 * @return the number of references written
+	 */
+	public int write(File reportFile) throws ApplicationException {
+		int written = 0;
+		//Opened for append, so clear out any report from an earlier run
+		GlobalUtils.delete(reportFile);
+		PrintWriter out = GlobalUtils.prepareFileToWrite(reportFile);
+		try {
+			out.print(REPORT_HEADER + GlobalUtils.LINE_DELIMITER);
+			for (Reference reference : references) {
+				if (deleted.contains(reference.referencedId)) {
+					out.print(reference.referencedId + FIELD_DELIMITER
+							+ reference.tableName + FIELD_DELIMITER
+							+ reference.column + FIELD_DELIMITER
+							+ reference.referencingId + FIELD_DELIMITER
+							+ reference.active + FIELD_DELIMITER
+							+ (reference.removed ? "removed" : "dangling") + GlobalUtils.LINE_DELIMITER);
+					written++;
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) {
+			throw new ApplicationException("Failed to write " + reportFile);
+		}
+		return written;
+	}
+}
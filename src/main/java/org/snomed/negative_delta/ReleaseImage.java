@@ -0,0 +1,188 @@
+package org.snomed.negative_delta;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.snomed.ApplicationException;
+import org.snomed.util.GlobalUtils;
+
+/**
+ * A precompiled binary image of a parsed Full file, so that repeated runs against the same 
+ * release can memory map the rows rather than reading and parsing the file again.
+ * 
+ * Layout:
+ *   header   - magic, release identity, source name and size, component and row counts, offset of the index
+ *   rows     - for each component, its rows in ascending effectiveTime order as [effectiveTime][length][UTF-8 bytes]
+ *   index    - for each component [hi][lo][offset of first row][row count]
+ * 
+ * No component's rows cross a segment boundary (padding is inserted where needed), so that 
+ * each segment can be mapped separately, and rows reference the mapped segment directly.
+ */
+public class ReleaseImage {
+	
+	private static final String MAGIC = "RF2IMG01";
+	static int SEGMENT_SIZE = 1 << 30;
+	private static final int ROW_HEADER_SIZE = 8 + 4;
+	private static final int INDEX_ENTRY_SIZE = 8 + 8 + 8 + 4;
+	
+	private final File imageFile;
+	private final String releaseIdentity;
+	
+	/**
+	 * @param releaseIdentity identifies the release the source came from, so that a stale image is never used
+	 */
+	public ReleaseImage(File imageDir, Rf2Source source, String releaseIdentity) {
+		this.imageFile = new File(imageDir, source.getName() + ".img");
+		this.releaseIdentity = releaseIdentity + "|" + source.getName() + "|" + source.getSize();
+	}
+	
+	/**
+	 * The canonical path is used, so that the same archive reached by a different relative path
+	 * or link is still recognised.
+	 */
+	public static String identify(File releaseArchive) {
+		String path;
+		try {
+			path = releaseArchive.getCanonicalPath();
+		} catch (IOException e) {
+			path = releaseArchive.getAbsolutePath();
+		}
+		return path + "|" + releaseArchive.length() + "|" + releaseArchive.lastModified();
+	}
+	
+	public boolean isCurrent() {
+		if (!imageFile.canRead()) {
+			return false;
+		}
+		try (DataInputStream in = new DataInputStream(new FileInputStream(imageFile))) {
+			return in.readUTF().equals(MAGIC) && in.readUTF().equals(releaseIdentity);
+		} catch (IOException e) {
+			GlobalUtils.print ("Ignoring unreadable image " + imageFile + ": " + e.getMessage());
+			return false;
+		}
+	}
+	
+	public ComponentIndex load() throws ApplicationException {
+		try (RandomAccessFile raf = new RandomAccessFile(imageFile, "r");
+				FileChannel channel = raf.getChannel()) {
+			raf.readUTF();
+			raf.readUTF();
+			int componentCount = raf.readInt();
+			raf.readLong();  //row count
+			long indexOffset = raf.readLong();
+			
+			MappedByteBuffer[] segments = new MappedByteBuffer[(int)((indexOffset + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = (long) i * SEGMENT_SIZE;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, indexOffset - start));
+			}
+			
+			ComponentIndex index = new ComponentIndex(componentCount);
+			MappedByteBuffer indexBuffer = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long) componentCount * INDEX_ENTRY_SIZE);
+			for (int c = 0; c < componentCount; c++) {
+				long hi = indexBuffer.getLong();
+				long lo = indexBuffer.getLong();
+				long rowOffset = indexBuffer.getLong();
+				Rf2Row[] history = new Rf2Row[indexBuffer.getInt()];
+				MappedByteBuffer segment = segments[(int)(rowOffset / SEGMENT_SIZE)];
+				int position = (int)(rowOffset % SEGMENT_SIZE);
+				for (int r = 0; r < history.length; r++) {
+					long effectiveTime = segment.getLong(position);
+					int length = segment.getInt(position + 8);
+					history[r] = new SliceRf2Row(segment, position + ROW_HEADER_SIZE, length, effectiveTime);
+					position += ROW_HEADER_SIZE + length;
+				}
+				index.putHistory(hi, lo, history);
+			}
+			return index;
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to load image " + imageFile, e);
+		}
+	}
+	
+	/**
+	 * Writes the image to a temporary file first, so a concurrent run never sees a partial image
+	 */
+	public void write(ComponentIndex rows) throws ApplicationException {
+		File tmpFile = new File(imageFile.getParentFile(), imageFile.getName() + "." + Thread.currentThread().getId() + ".tmp");
+		try {
+			imageFile.getParentFile().mkdirs();
+			long indexOffset;
+			int componentCount = rows.size();
+			long[] rowOffsets = new long[rows.capacity()];
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 256 * 1024))) {
+				out.writeUTF(MAGIC);
+				out.writeUTF(releaseIdentity);
+				out.writeInt(componentCount);
+				out.writeLong(rows.getRowCount());
+				long indexOffsetPosition = out.size();
+				out.writeLong(0L);  //Filled in once known
+				long position = out.size();
+				for (int slot = 0; slot < rows.capacity(); slot++) {
+					Rf2Row[] history = rows.historyAt(slot);
+					if (history == null) {
+						continue;
+					}
+					byte[][] rowBytes = new byte[history.length][];
+					long historySize = 0;
+					for (int r = 0; r < history.length; r++) {
+						rowBytes[r] = history[r].toString().getBytes(StandardCharsets.UTF_8);
+						historySize += ROW_HEADER_SIZE + rowBytes[r].length;
+					}
+					if (historySize > SEGMENT_SIZE) {
+						throw new ApplicationException("Component history too large for image: " + history[0]);
+					}
+					//Pad rather than let the history straddle two segments
+					if (historySize > 0 && position / SEGMENT_SIZE != (position + historySize - 1) / SEGMENT_SIZE) {
+						long nextSegment = (position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+						for (; position < nextSegment; position++) {
+							out.writeByte(0);
+						}
+					}
+					rowOffsets[slot] = position;
+					for (int r = 0; r < history.length; r++) {
+						out.writeLong(history[r].getEffectiveTime());
+						out.writeInt(rowBytes[r].length);
+						out.write(rowBytes[r]);
+					}
+					position += historySize;
+				}
+				indexOffset = position;
+				for (int slot = 0; slot < rows.capacity(); slot++) {
+					Rf2Row[] history = rows.historyAt(slot);
+					if (history != null) {
+						out.writeLong(rows.hiAt(slot));
+						out.writeLong(rows.loAt(slot));
+						out.writeLong(rowOffsets[slot]);
+						out.writeInt(history.length);
+					}
+				}
+				out.flush();
+				try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+					raf.seek(indexOffsetPosition);
+					raf.writeLong(indexOffset);
+				}
+			}
+			Files.move(tmpFile.toPath(), imageFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			GlobalUtils.delete(tmpFile);
+			throw new ApplicationException("Failed to write image " + imageFile, e);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return imageFile.toString();
+	}
+}
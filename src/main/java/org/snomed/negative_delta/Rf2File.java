@@ -1,69 +1,127 @@
 package org.snomed.negative_delta;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
 
 import org.snomed.ApplicationException;
+import org.snomed.negative_delta.ProcessingOptions.RowStorage;
 import org.snomed.util.GlobalUtils;
 
-import com.google.common.base.Charsets;
-import com.google.common.io.Files;
-
 public class Rf2File implements SnomedConstants{
 
-	//Map of row items per identifier
-	private Map<String, TreeSet<Rf2Row>> rows = new HashMap<String, TreeSet<Rf2Row>>();
-	private File file;
+	//Row items per identifier
+	private ComponentIndex rows = new ComponentIndex();
+	private Rf2Source file;
+	private RowStorage storage;
+	private ReleaseImage image;
+	private ComponentIndex base;
+	private ExecutorService pipelineStages;
+	private long rowsRead = 0;
 	public static int MIN_LINE_LENGTH = 2;
 	
-	public Rf2File (File file) {
+	public Rf2File (Rf2Source file) {
+		this(file, RowStorage.HEAP);
+	}
+	
+	public Rf2File (Rf2Source file, RowStorage storage) {
 		this.file = file;
+		this.storage = storage;
+	}
+	
+	//Rows already loaded by other means, as by the benchmarks
+	Rf2File (ComponentIndex rows) {
+		this.rows = rows;
+	}
+	
+	/**
+	 * Full files with an image are loaded from it when it is current, and otherwise 
+	 * parsed as normal and the image (re)written for next time.
+	 */
+	public void setImage(ReleaseImage image) {
+		this.image = image;
+	}
+	
+	/**
+	 * Full files with a base are not read at all.  Loading takes a copy-on-write copy of the 
+	 * base, which was parsed from this file earlier and is shared with other runs.
+	 */
+	public void setBase(ComponentIndex base) {
+		this.base = base;
+	}
+	
+	/**
+	 * Full files with a pipeline are read and parsed on a stage of their own, while the rows 
+	 * already parsed are added to the index.
+	 */
+	public void setPipeline(ExecutorService pipelineStages) {
+		this.pipelineStages = pipelineStages;
 	}
 	
 	public void loadFile(boolean isDeletion) throws ApplicationException {
+		if (base != null && !isDeletion) {
+			rows = base.copyOnWrite();
+			rowsRead = rows.getRowCount();
+			return;
+		}
+		if (file != null && image != null && !isDeletion && image.isCurrent()) {
+			rows = image.load();
+			rowsRead = rows.getRowCount();
+			GlobalUtils.print ("Loaded " + rows.size() + " components for " + file.getName() + " from image " + image);
+			return;
+		}
 		if (file != null) {
-			try {
-				List<String> lines = Files.readLines(file, Charsets.UTF_8);
-				boolean isHeaderRow = true;
-				for (String line : lines) {
-					if (!isHeaderRow && line.length() > MIN_LINE_LENGTH) {
-						Rf2Row row = new Rf2Row(line, isDeletion);
-						String id = row.getId();
-						//Have we seen a row for this id before?
-						TreeSet<Rf2Row> idRows = rows.get(id);
-						if (idRows == null) {
-							idRows = new TreeSet<Rf2Row>();
-							rows.put(id, idRows);
-						}
-						idRows.add(row);
-					} else {
-						isHeaderRow = false;
-					}
+			try (Rf2Reader reader = pipeline(openReader(file, storage, isDeletion), isDeletion)) {
+				while (reader.next()) {
+					rows.add(reader.getHi(), reader.getLo(), reader.getRow());
+					rowsRead++;
 				}
 			} catch (IOException e) {
 				throw new ApplicationException("Failed to load " + file, e);
 			}
+			if (image != null && !isDeletion) {
+				image.write(rows);
+			}
 		}
 		if (isDeletion & file != null) {
 			GlobalUtils.print ("Negative Delta for " + file.getName() + " referenced " + rows.size() + " components", true);
 		}
 	}
 	
-	public Set<String> getComponents() {
-		return rows.keySet();
+	public static Rf2Reader openReader(Rf2Source source, RowStorage storage, boolean isDeletion) throws ApplicationException {
+		//Deletion rows need reforming before comparison, so are always held as Strings
+		//Only files on local disk can be mapped, archive entries are read as a stream
+		if (storage == RowStorage.MAPPED && !isDeletion && source.getFile() != null) {
+			return new MappedRf2Reader(source.getFile());
+		}
+		if ((storage == RowStorage.OFFHEAP || storage == RowStorage.COLUMNAR) && !isDeletion) {
+			return new ArenaRf2Reader(source, storage);
+		}
+		return new LineRf2Reader(source, isDeletion);
+	}
+	
+	private Rf2Reader pipeline(Rf2Reader reader, boolean isDeletion) {
+		if (pipelineStages == null || isDeletion) {
+			return reader;
+		}
+		return new PipelinedRf2Reader(reader, pipelineStages);
+	}
+	
+	/**
+	 * @return the number of rows loaded, including any ignored as duplicates
+	 */
+	public long getRowsRead() {
+		return rowsRead;
+	}
+	
+	public ComponentIndex getComponents() {
+		return rows;
 	}
 	
-	public TreeSet<Rf2Row> getComponentHistory(String id) {
+	public Rf2Row[] getComponentHistory(String id) throws ApplicationException {
 		return rows.get(id);
 	}
 
-	public void removeRow(String id, Rf2Row fullRow) {
-		TreeSet<Rf2Row> historyForComponent = rows.get(id);
-		historyForComponent.remove(fullRow);
+	public void removeRow(String id, Rf2Row fullRow) throws ApplicationException {
+		rows.remove(ComponentIndex.keyHi(id), ComponentIndex.keyLo(id), fullRow);
 	}
 }
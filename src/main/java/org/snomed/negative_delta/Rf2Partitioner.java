@@ -0,0 +1,64 @@
+package org.snomed.negative_delta;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import org.snomed.ApplicationException;
+
+/**
+ * Splits an RF2 file into a number of bucket files on disk, hashed on component id, 
+ * so that all rows for any given component end up in the same bucket.  Each bucket
+ * retains the original header row so that it can be loaded as a normal Rf2File.
+ */
+public class Rf2Partitioner implements SnomedConstants {
+	
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * @return one file per bucket, or an array of nulls if there was no source file to split
+	 */
+	public static File[] partition(Rf2Source source, File targetDir, int partitionCount) throws ApplicationException {
+		File[] buckets = new File[partitionCount];
+		if (source == null) {
+			return buckets;
+		}
+		Rf2Writer[] writers = new Rf2Writer[partitionCount];
+		try {
+			for (int i = 0; i < partitionCount; i++) {
+				buckets[i] = new File(targetDir, source.getName() + "." + i);
+				writers[i] = new Rf2Writer(new FileOutputStream(buckets[i]), WRITE_BUFFER_SIZE);
+			}
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(source.openStream(), StandardCharsets.UTF_8))) {
+				String line = reader.readLine();
+				if (line != null) {
+					//Every bucket gets the header so it can be loaded independently
+					for (Rf2Writer writer : writers) {
+						writer.writeLine(line);
+					}
+				}
+				while ((line = reader.readLine()) != null) {
+					if (line.length() > Rf2File.MIN_LINE_LENGTH) {
+						writers[getPartition(line, partitionCount)].writeLine(line);
+					}
+				}
+			}
+			//Closing flushes what is left of each bucket, so a failure here loses rows just the same
+			Rf2Writer.close(writers);
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to partition " + source, e);
+		} finally {
+			Rf2Writer.closeQuietly(writers);
+		}
+		return buckets;
+	}
+	
+	static int getPartition(String line, int partitionCount) {
+		int endOfId = line.indexOf(FIELD_DELIMITER);
+		String id = endOfId < 0 ? line : line.substring(0, endOfId);
+		return (id.hashCode() & Integer.MAX_VALUE) % partitionCount;
+	}
+}
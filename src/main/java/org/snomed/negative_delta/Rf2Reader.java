@@ -0,0 +1,37 @@
+package org.snomed.negative_delta;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.snomed.ApplicationException;
+
+/**
+ * Visits the data rows of an RF2 file one at a time, with the component key and 
+ * effectiveTime of each row decoded ready for use.
+ * 
+ * Usage: while (reader.next()) { reader.getHi() ... }
+ */
+public interface Rf2Reader extends Closeable {
+	
+	/**
+	 * Advances to the next data row, skipping the header and any blank lines
+	 * @return false when the end of the file has been reached
+	 */
+	public boolean next() throws ApplicationException;
+	
+	public long getHi();
+	
+	public long getLo();
+	
+	public long getEffectiveTime();
+	
+	/**
+	 * @return the current row.  Each call creates a new row object, so should only be made for rows being kept
+	 */
+	public Rf2Row getRow();
+	
+	/**
+	 * Writes the current row exactly as read, for rows which are passed through unchanged
+	 */
+	public void writeLineTo(Rf2Writer out) throws IOException;
+}
@@ -1,53 +1,157 @@
 package org.snomed.negative_delta;
 
+import java.io.IOException;
+
 public class Rf2Row implements SnomedConstants, Comparable<Rf2Row> {
-	String id;
+	
+	static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	static final long FNV_PRIME = 0x100000001b3L;
+	static final int MAX_SCTID_LENGTH = 18;
+	
 	String row;
-	Long effectiveTime;
+	long effectiveTime;
 	boolean isDeletion;
 	
 	public Rf2Row (String row, boolean isDeletion) {
-		String[] fields = row.split(FIELD_DELIMITER);
+		int idEnd = row.indexOf(FIELD_DELIMITER);
+		int effectiveTimeEnd = row.indexOf(FIELD_DELIMITER, idEnd + 1);
 		this.row = row;
-		this.id = fields[IDX_ID];
-		effectiveTime = Long.parseLong(fields[IDX_EFFECTIVETIME]);
+		effectiveTime = Long.parseLong(row.substring(idEnd + 1, effectiveTimeEnd < 0 ? row.length() : effectiveTimeEnd));
 		this.isDeletion = isDeletion;
 		//For comparison purposes, we need the original row so reform it if this is a deletion row
+		//by cutting out the deletionEffectiveTime and deletionActive fields
 		if (isDeletion) {
-			StringBuffer sb = new StringBuffer();
-			for (int idx=0; idx<fields.length; idx++) {
-				if (idx != IDX_DEL_DELETIONEFFECTIVETIME && idx != IDX_DEL_DELETIONACTIVE) {
-					if (idx>0) {
-						sb.append(FIELD_DELIMITER);
-					}
-					sb.append(fields[idx]);
-				}
+			int deletionEffectiveTimeEnd = row.indexOf(FIELD_DELIMITER, effectiveTimeEnd + 1);
+			int activeEnd = row.indexOf(FIELD_DELIMITER, deletionEffectiveTimeEnd + 1);
+			int deletionActiveEnd = row.indexOf(FIELD_DELIMITER, activeEnd + 1);
+			if (deletionActiveEnd < 0) {
+				throw new IllegalArgumentException("Deletion row has too few fields: " + row);
 			}
+			StringBuilder sb = new StringBuilder(row.length());
+			sb.append(row, 0, effectiveTimeEnd)
+				.append(row, deletionEffectiveTimeEnd, activeEnd)
+				.append(row, deletionActiveEnd, row.length());
 			this.row = sb.toString();
 		}
 	}
 	
+	//For rows which hold their text in some other form
+	protected Rf2Row (long effectiveTime) {
+		this.effectiveTime = effectiveTime;
+	}
+	
+	//The id is the first field, so is not held separately to save memory
 	String getId() {
-		return id;
+		String row = toString();
+		int endOfId = row.indexOf(FIELD_DELIMITER);
+		return endOfId < 0 ? row : row.substring(0, endOfId);
+	}
+
+	/**
+	 * @return the field at the given position, counting from 0, or "" if the row has no such field
+	 */
+	String getField(int position) {
+		String row = toString();
+		int fieldStart = 0;
+		for (int field = 0; field < position; field++) {
+			fieldStart = row.indexOf(FIELD_DELIMITER, fieldStart) + 1;
+			if (fieldStart == 0) {
+				return "";
+			}
+		}
+		int fieldEnd = row.indexOf(FIELD_DELIMITER, fieldStart);
+		return row.substring(fieldStart, fieldEnd < 0 ? row.length() : fieldEnd);
+	}
+	
+	/**
+	 * Reads an identifier field in place, which rows held as bytes or as columns do without
+	 * decoding the rest of the row.
+	 * @return the field at the given position as an SCTID, or -1 if it is missing or not an SCTID
+	 */
+	long getSctidField(int position) {
+		int field = 0;
+		long sctid = 0;
+		int digits = 0;
+		for (int i = 0; i < row.length(); i++) {
+			char c = row.charAt(i);
+			if (c == '\t') {
+				if (field == position) {
+					break;
+				}
+				field++;
+			} else if (field == position) {
+				if (c < '0' || c > '9' || ++digits > MAX_SCTID_LENGTH) {
+					return -1;
+				}
+				sctid = sctid * 10 + (c - '0');
+			}
+		}
+		return field == position && digits > 0 ? sctid : -1;
 	}
 
 	@Override
 	public int compareTo(Rf2Row o) {
-		return effectiveTime.compareTo(o.effectiveTime);
+		return Long.compare(effectiveTime, o.effectiveTime);
 	}
 	
 	@Override
 	public boolean equals (Object o) {
 		if (o instanceof Rf2Row) {
-			return row.equals(((Rf2Row)o).toString());
+			return toString().equals(((Rf2Row)o).toString());
 		}
 		return false;
 	}
 
-	public Long getEffectiveTime() {
+	@Override
+	public int hashCode() {
+		long fingerprint = getFingerprint();
+		return (int)(fingerprint ^ (fingerprint >>> 32));
+	}
+	
+	/**
+	 * @return 64 bit FNV-1a hash of the row's UTF-8 bytes, so that rows held as Strings 
+	 * and rows held as bytes produce the same value for the same content.
+	 */
+	public long getFingerprint() {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < row.length(); i++) {
+			int c = row.charAt(i);
+			if (c < 0x80) {
+				hash = (hash ^ c) * FNV_PRIME;
+			} else if (c < 0x800) {
+				hash = (hash ^ (0xC0 | (c >> 6))) * FNV_PRIME;
+				hash = (hash ^ (0x80 | (c & 0x3F))) * FNV_PRIME;
+			} else if (Character.isHighSurrogate((char) c) && i + 1 < row.length() && Character.isLowSurrogate(row.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint((char) c, row.charAt(++i));
+				hash = (hash ^ (0xF0 | (codePoint >> 18))) * FNV_PRIME;
+				hash = (hash ^ (0x80 | ((codePoint >> 12) & 0x3F))) * FNV_PRIME;
+				hash = (hash ^ (0x80 | ((codePoint >> 6) & 0x3F))) * FNV_PRIME;
+				hash = (hash ^ (0x80 | (codePoint & 0x3F))) * FNV_PRIME;
+			} else {
+				//Unpaired surrogates are encoded by the UTF-8 encoder as '?'
+				if (Character.isSurrogate((char) c)) {
+					hash = (hash ^ '?') * FNV_PRIME;
+					continue;
+				}
+				hash = (hash ^ (0xE0 | (c >> 12))) * FNV_PRIME;
+				hash = (hash ^ (0x80 | ((c >> 6) & 0x3F))) * FNV_PRIME;
+				hash = (hash ^ (0x80 | (c & 0x3F))) * FNV_PRIME;
+			}
+		}
+		return hash;
+	}
+
+	public long getEffectiveTime() {
 		return effectiveTime;
 	}
 	
+	/**
+	 * Writes the row as a line of output.  Rows held as bytes are copied without being decoded.
+	 */
+	public void writeTo(Rf2Writer out) throws IOException {
+		out.writeLine(row);
+	}
+	
 	@Override
 	public String toString() {
 		return row;
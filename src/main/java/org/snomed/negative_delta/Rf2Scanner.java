@@ -0,0 +1,128 @@
+package org.snomed.negative_delta;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.snomed.ApplicationException;
+
+/**
+ * Checks, in a single pass over its bytes, whether a Full file could be copied as it stands
+ * rather than rebuilt row by row: its header is the one expected, every line is a row ended
+ * with CRLF just as Rf2Writer would write it, and no row is later than the max target
+ * effectiveTime.  Only the effectiveTime of each row is decoded, and the scan stops at the
+ * first line which fails.
+ */
+class Rf2Scanner {
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static final byte TAB = '\t';
+	private static final byte LF = '\n';
+	private static final byte CR = '\r';
+
+	private long headerLength = 0;
+	private long rowCount = 0;
+	private String reason;
+
+	private Rf2Scanner() {
+	}
+
+	static Rf2Scanner scan(Rf2Source source, String expectedHeader, long maxEffectiveTime) throws ApplicationException {
+		Rf2Scanner scan = new Rf2Scanner();
+		try (InputStream in = source.openStream()) {
+			scan.reason = scan.check(in, (expectedHeader + "\r\n").getBytes(StandardCharsets.UTF_8), maxEffectiveTime);
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to scan " + source, e);
+		}
+		return scan;
+	}
+
+	/**
+	 * @return why the file cannot be copied, or null if it can
+	 */
+	private String check(InputStream in, byte[] expectedHeader, long maxEffectiveTime) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		byte[] header = new byte[expectedHeader.length];
+		int headerRead = 0;
+		//State of the current line
+		int lineLength = 0;
+		int field = 0;
+		long effectiveTime = 0;
+		byte previous = 0;
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			int i = 0;
+			//The header is compared byte for byte, including its line ending
+			while (headerRead < header.length && i < read) {
+				header[headerRead++] = buffer[i++];
+				if (headerRead == header.length) {
+					if (!Arrays.equals(header, expectedHeader)) {
+						return "header differs";
+					}
+					headerLength = header.length;
+				}
+			}
+			for (; i < read; i++) {
+				byte b = buffer[i];
+				if (b != LF) {
+					if (b == TAB) {
+						field++;
+					} else if (field == 1) {
+						int digit = b - '0';
+						if (digit < 0 || digit > 9) {
+							return "invalid effectiveTime";
+						}
+						effectiveTime = effectiveTime * 10 + digit;
+					}
+					previous = b;
+					lineLength++;
+					continue;
+				}
+				if (previous != CR) {
+					return "line not ended with CRLF";
+				}
+				if (lineLength - 1 <= Rf2File.MIN_LINE_LENGTH || field < 2) {
+					return "blank or malformed line";
+				}
+				if (effectiveTime > maxEffectiveTime) {
+					return "rows later than " + maxEffectiveTime;
+				}
+				rowCount++;
+				lineLength = 0;
+				field = 0;
+				effectiveTime = 0;
+				previous = 0;
+			}
+		}
+		if (headerLength == 0) {
+			return "header differs";
+		}
+		if (lineLength > 0) {
+			return "last line not ended with CRLF";
+		}
+		return null;
+	}
+
+	boolean isUnchanged() {
+		return reason == null;
+	}
+
+	/**
+	 * @return why the file cannot be copied as it stands
+	 */
+	String getReason() {
+		return reason;
+	}
+
+	/**
+	 * @return the length in bytes of the header line, including its line ending
+	 */
+	long getHeaderLength() {
+		return headerLength;
+	}
+
+	long getRowCount() {
+		return rowCount;
+	}
+}
@@ -0,0 +1,30 @@
+package org.snomed.negative_delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Somewhere an RF2 file can be read from - either a file on local disk, 
+ * or an entry read directly from a release archive.
+ */
+public interface Rf2Source {
+	
+	/**
+	 * @return the file name, without any path
+	 */
+	public String getName();
+	
+	public InputStream openStream() throws IOException;
+	
+	/**
+	 * @return uncompressed size in bytes, or -1 if not known
+	 */
+	public long getSize();
+	
+	/**
+	 * @return the file on local disk, or null if this source is not held as a file, 
+	 * in which case it can only be read as a stream.
+	 */
+	public File getFile();
+}
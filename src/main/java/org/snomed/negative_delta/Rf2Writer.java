@@ -0,0 +1,249 @@
+package org.snomed.negative_delta;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Writes RF2 lines to a single output, encoding them as UTF-8 straight into a large reusable 
+ * buffer which is written out in whole blocks.  Each file has its own writer, so there is no
+ * locking - a writer must only be used by one thread at a time.  Unlike PrintWriter, failures 
+ * to write are thrown rather than swallowed.
+ */
+public class Rf2Writer implements Closeable {
+	
+	static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	//Longest UTF-8 encoding of a single char, or of a surrogate pair (which is two chars)
+	private static final int MAX_BYTES_PER_CHAR = 3;
+	
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int position = 0;
+	private long bytesWritten = 0;
+	private long linesWritten = 0;
+	private boolean closed = false;
+	
+	public Rf2Writer(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+	
+	public Rf2Writer(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buffer = new byte[bufferSize];
+	}
+	
+	public static Rf2Writer open(File file) throws IOException {
+		return new Rf2Writer(new FileOutputStream(file));
+	}
+	
+	/**
+	 * Writes the text followed by the RF2 line ending (CRLF)
+	 */
+	public void writeLine(String line) throws IOException {
+		int maxLength = line.length() * MAX_BYTES_PER_CHAR + 2;
+		if (maxLength > buffer.length) {
+			//Too long to be sure of fitting in the buffer, so encode it separately
+			writeLine(line.getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+		if (buffer.length - position < maxLength) {
+			flushBuffer();
+		}
+		int start = position;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c < 0x80) {
+				buffer[position++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[position++] = (byte) (0xC0 | (c >> 6));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < line.length() && Character.isLowSurrogate(line.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, line.charAt(++i));
+				buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				//Unpaired surrogate, replaced as String.getBytes would
+				buffer[position++] = '?';
+			} else {
+				buffer[position++] = (byte) (0xE0 | (c >> 12));
+				buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		buffer[position++] = CR;
+		buffer[position++] = LF;
+		bytesWritten += position - start;
+		linesWritten++;
+	}
+	
+	/**
+	 * Writes a line which is already UTF-8 encoded, followed by the RF2 line ending
+	 */
+	public void writeLine(byte[] line) throws IOException {
+		writeLine(line, 0, line.length);
+	}
+	
+	public void writeLine(byte[] line, int offset, int length) throws IOException {
+		write(line, offset, length);
+		endLine();
+	}
+	
+	/**
+	 * Writes a line held as UTF-8 bytes in the source buffer, without decoding it.  
+	 * The source buffer's position is not changed, so it may be shared between threads.
+	 */
+	public void writeLine(ByteBuffer source, int offset, int length) throws IOException {
+		ByteBuffer slice = source.duplicate();
+		slice.position(offset);
+		int remaining = length;
+		while (remaining > 0) {
+			if (position == buffer.length) {
+				flushBuffer();
+			}
+			int chunk = Math.min(remaining, buffer.length - position);
+			slice.get(buffer, position, chunk);
+			position += chunk;
+			remaining -= chunk;
+		}
+		bytesWritten += length;
+		endLine();
+	}
+	
+	private void write(byte[] bytes, int offset, int length) throws IOException {
+		if (length > buffer.length - position) {
+			flushBuffer();
+			if (length > buffer.length) {
+				out.write(bytes, offset, length);
+				bytesWritten += length;
+				return;
+			}
+		}
+		System.arraycopy(bytes, offset, buffer, position, length);
+		position += length;
+		bytesWritten += length;
+	}
+	
+	private void endLine() throws IOException {
+		if (buffer.length - position < 2) {
+			flushBuffer();
+		}
+		buffer[position++] = CR;
+		buffer[position++] = LF;
+		bytesWritten += 2;
+		linesWritten++;
+	}
+	
+	/**
+	 * Appends the whole content of a file, eg one written by another writer, as it stands
+	 */
+	public void append(File file) throws IOException {
+		flushBuffer();
+		bytesWritten += Files.copy(file.toPath(), out);
+	}
+	
+	/**
+	 * Appends the content of the source from the given offset, which must already be complete
+	 * RF2 lines.  A file on local disk is transferred straight to a file output by the operating
+	 * system, without passing through the heap.  Anything else is copied as it stands.
+	 */
+	public void append(Rf2Source source, long offset) throws IOException {
+		flushBuffer();
+		File file = source.getFile();
+		if (file != null && out instanceof FileOutputStream) {
+			FileChannel target = ((FileOutputStream) out).getChannel();
+			try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long size = in.size();
+				//May transfer less than asked, so carry on until it is all done
+				for (long position = offset; position < size; ) {
+					long transferred = in.transferTo(position, size - position, target);
+					if (transferred <= 0) {
+						throw new IOException("Failed to transfer " + file + " beyond " + position + " of " + size + " bytes");
+					}
+					position += transferred;
+				}
+				bytesWritten += Math.max(0, size - offset);
+			}
+		} else {
+			try (InputStream in = source.openStream()) {
+				ByteStreams.skipFully(in, offset);
+				bytesWritten += ByteStreams.copy(in, out);
+			}
+		}
+	}
+	
+	//Closes each writer, reporting the first failure once all have been attempted
+	public static void close(Rf2Writer[] writers) throws IOException {
+		IOException failure = null;
+		for (Rf2Writer writer : writers) {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					failure = failure == null ? e : failure;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+	
+	//For use when already failing, so any further failure to close is of no interest
+	public static void closeQuietly(Rf2Writer[] writers) {
+		try {
+			close(writers);
+		} catch (IOException e) {
+			//Already failing
+		}
+	}
+	
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+	
+	/**
+	 * @return the number of lines written, not including any appended from other files
+	 */
+	public long getLinesWritten() {
+		return linesWritten;
+	}
+	
+	private void flushBuffer() throws IOException {
+		if (position > 0) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+	
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			flushBuffer();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package org.snomed.negative_delta;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds the UTF-8 bytes of rows in large direct buffers outside the garbage collected heap,
+ * so that a loaded table costs the collector a small row object per row rather than a String
+ * and its character array.  Rows are appended one after another and never freed individually.
+ * Each segment is released once no row refers to it any longer.
+ *
+ * Direct buffers count against -XX:MaxDirectMemorySize rather than -Xmx.
+ */
+class RowArena implements RowStore {
+
+	static int SEGMENT_SIZE = 64 * 1024 * 1024;
+	//Segments start small and double, so that small tables do not each tie up a whole segment
+	private static final int FIRST_SEGMENT_SIZE = 1024 * 1024;
+
+	private ByteBuffer segment;
+	private int nextSegmentSize = FIRST_SEGMENT_SIZE;
+
+	@Override
+	public SliceRf2Row add(ByteBuffer source, int offset, int length, long effectiveTime) {
+		if (segment == null || segment.remaining() < length) {
+			segment = ByteBuffer.allocateDirect(Math.max(nextSegmentSize, length));
+			nextSegmentSize = Math.min(nextSegmentSize * 2, Math.max(SEGMENT_SIZE, FIRST_SEGMENT_SIZE));
+		}
+		int position = segment.position();
+		ByteBuffer row = source.duplicate();
+		row.limit(offset + length).position(offset);
+		segment.put(row);
+		return new SliceRf2Row(segment, position, length, effectiveTime);
+	}
+
+	//Segments are allocated as they are needed, so there is nothing to give up
+	@Override
+	public void trim() {
+	}
+}
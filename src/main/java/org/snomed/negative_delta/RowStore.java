@@ -0,0 +1,20 @@
+package org.snomed.negative_delta;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where an ArenaRf2Reader keeps the bytes of the rows it is asked for
+ */
+interface RowStore {
+
+	/**
+	 * Copies the row's bytes into the store
+	 * @return a row addressing the copy
+	 */
+	Rf2Row add(ByteBuffer source, int offset, int length, long effectiveTime);
+
+	/**
+	 * Called once the file has been read, so that space reserved for further rows may be given up
+	 */
+	void trim();
+}
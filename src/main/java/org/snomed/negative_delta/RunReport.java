@@ -0,0 +1,114 @@
+package org.snomed.negative_delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.snomed.ApplicationException;
+import org.snomed.util.GlobalUtils;
+
+/**
+ * Collects the phase timings of a run and the metrics of each table, and writes them out as JSON
+ * so that throughput can be charted across runs and the slowest table picked out.
+ */
+public class RunReport {
+	
+	static final String RUN_SCOPE = "run";
+	
+	private final Date started = new Date();
+	private final long startNanos = System.nanoTime();
+	private final Map<Phase, Long> phaseNanos = new EnumMap<Phase, Long>(Phase.class);
+	private final List<TableMetrics> tables = new ArrayList<TableMetrics>();
+	private String[] args = new String[0];
+	
+	public void setArgs(String[] args) {
+		this.args = args;
+	}
+	
+	public synchronized TableMetrics addTable(String tableName) {
+		TableMetrics metrics = new TableMetrics(tableName);
+		tables.add(metrics);
+		return metrics;
+	}
+	
+	public PhaseTimer start(Phase phase) {
+		return PhaseTimer.start(RUN_SCOPE, phase);
+	}
+	
+	public synchronized void end(PhaseTimer timer, Phase phase, long rows, long bytes) {
+		long nanos = timer.end(rows, bytes);
+		Long soFar = phaseNanos.get(phase);
+		phaseNanos.put(phase, soFar == null ? nanos : soFar + nanos);
+	}
+	
+	public synchronized void write(File reportFile) throws ApplicationException {
+		StringBuilder json = new StringBuilder();
+		json.append("{\n");
+		field(json, "\t", "started", String.format("%tFT%<tT%<tz", started)).append(",\n");
+		field(json, "\t", "durationMs", (System.nanoTime() - startNanos) / 1000000).append(",\n");
+		json.append("\t\"args\": [");
+		for (int i = 0; i < args.length; i++) {
+			json.append(i == 0 ? "" : ", ");
+			string(json, args[i]);
+		}
+		json.append("],\n\t\"phasesMs\": ");
+		phasesToJson(json, phaseNanos);
+		json.append(",\n\t\"tables\": [");
+		for (int i = 0; i < tables.size(); i++) {
+			json.append(i == 0 ? "\n" : ",\n");
+			tables.get(i).toJson(json, "\t\t");
+		}
+		json.append("\n\t]\n}\n");
+		try (PrintWriter out = new PrintWriter(reportFile, "UTF-8")) {
+			out.print(json);
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to write run report to " + reportFile, e);
+		}
+		GlobalUtils.print("Run report written to " + reportFile);
+	}
+	
+	static void phasesToJson(StringBuilder json, Map<Phase, Long> phaseNanos) {
+		json.append("{");
+		boolean first = true;
+		for (Map.Entry<Phase, Long> phase : phaseNanos.entrySet()) {
+			json.append(first ? "" : ", ").append("\"").append(phase.getKey().name()).append("\": ").append(phase.getValue() / 1000000);
+			first = false;
+		}
+		json.append("}");
+	}
+	
+	static StringBuilder field(StringBuilder json, String indent, String name, long value) {
+		return json.append(indent).append("\"").append(name).append("\": ").append(value);
+	}
+	
+	static StringBuilder field(StringBuilder json, String indent, String name, String value) {
+		json.append(indent).append("\"").append(name).append("\": ");
+		return string(json, value);
+	}
+	
+	private static StringBuilder string(StringBuilder json, String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"' : json.append("\\\""); break;
+				case '\\' : json.append("\\\\"); break;
+				case '\n' : json.append("\\n"); break;
+				case '\r' : json.append("\\r"); break;
+				case '\t' : json.append("\\t"); break;
+				default :
+					if (c < 0x20) {
+						json.append(String.format("\\u%04x", (int) c));
+					} else {
+						json.append(c);
+					}
+			}
+		}
+		return json.append('"');
+	}
+}
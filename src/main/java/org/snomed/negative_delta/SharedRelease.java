@@ -0,0 +1,138 @@
+package org.snomed.negative_delta;
+
+import static org.snomed.util.GlobalUtils.print;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipFile;
+
+import org.snomed.ApplicationException;
+import org.snomed.util.ArchiveExtractor;
+import org.snomed.util.GlobalUtils;
+
+import com.google.common.io.Files;
+
+/**
+ * The Full files of one release, parsed once and then left unchanged so that any number of
+ * negative deltas can be applied to it in turn within the same process.  Each run is handed a
+ * copy-on-write copy of each table, so rows removed for one negative delta are never seen by
+ * another, and the rows themselves are never duplicated.
+ */
+class SharedRelease implements SnomedConstants {
+
+	private final File releaseArchive;
+	private File releaseLocation;
+	private List<ZipFile> openArchives = new ArrayList<ZipFile>();
+	private List<Rf2Source> sources = new ArrayList<Rf2Source>();
+	private final Map<Rf2Source, ComponentIndex> tables = new HashMap<Rf2Source, ComponentIndex>();
+
+	SharedRelease(File releaseArchive) {
+		this.releaseArchive = releaseArchive;
+	}
+
+	/**
+	 * Extracts (or with -direct, opens) the Full files of the release and parses every
+	 * recognised table, options.getThreads() at a time.
+	 */
+	void load(ProcessingOptions options) throws ApplicationException {
+		if (options.isDirectFromArchive()) {
+			print ("Reading Release directly from " + releaseArchive.getAbsolutePath());
+			sources = NegativeDeltaProcessor.listArchive(releaseArchive, FULL, openArchives);
+		} else {
+			releaseLocation = Files.createTempDir();
+			print ("Unzipping Release Archive " + releaseArchive.getAbsolutePath() + " to " + releaseLocation.getAbsolutePath());
+			ExecutorService extractors = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			try {
+				for (File f : new ArchiveExtractor(extractors).extractFlat(releaseArchive, releaseLocation, new String[]{FULL})) {
+					sources.add(new FileRf2Source(f));
+				}
+			} finally {
+				extractors.shutdown();
+			}
+			print ("");
+		}
+		parse(options);
+	}
+
+	private void parse(final ProcessingOptions options) throws ApplicationException {
+		List<Rf2Source> recognised = new ArrayList<Rf2Source>();
+		for (Rf2Source source : sources) {
+			if (FileProcessor.identifyTable(source.getName(), TableType.FULL) != null) {
+				recognised.add(source);
+			}
+		}
+		//Largest first, as for processing, so the longest parse is not left until last
+		Collections.sort(recognised, new Comparator<Rf2Source>() {
+			@Override
+			public int compare(Rf2Source a, Rf2Source b) {
+				return Long.compare(b.getSize(), a.getSize());
+			}
+		});
+		ExecutorService parsers = Executors.newFixedThreadPool(options.getThreads());
+		try {
+			Map<Rf2Source, Future<ComponentIndex>> parsed = new HashMap<Rf2Source, Future<ComponentIndex>>();
+			for (final Rf2Source source : recognised) {
+				parsed.put(source, parsers.submit(new Callable<ComponentIndex>() {
+					@Override
+					public ComponentIndex call() throws ApplicationException {
+						Rf2File fullFile = new Rf2File(source, options.getStorage());
+						fullFile.loadFile(false);
+						print ("Parsed " + fullFile.getComponents().size() + " components from " + source.getName());
+						return fullFile.getComponents();
+					}
+				}));
+			}
+			for (Map.Entry<Rf2Source, Future<ComponentIndex>> entry : parsed.entrySet()) {
+				tables.put(entry.getKey(), entry.getValue().get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ApplicationException("Interrupted while parsing " + releaseArchive.getName(), e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ApplicationException) {
+				throw (ApplicationException) e.getCause();
+			}
+			throw new ApplicationException("Failed to parse " + releaseArchive.getName(), e.getCause());
+		} finally {
+			parsers.shutdownNow();
+		}
+	}
+
+	File getReleaseArchive() {
+		return releaseArchive;
+	}
+
+	List<Rf2Source> getSources() {
+		return sources;
+	}
+
+	/**
+	 * @return the parsed table, which must not be changed, or null if the source was not recognised
+	 */
+	ComponentIndex getComponents(Rf2Source source) {
+		return tables.get(source);
+	}
+
+	void close() {
+		tables.clear();
+		GlobalUtils.delete(releaseLocation);
+		for (ZipFile archive : openArchives) {
+			try {
+				archive.close();
+			} catch (IOException e) {
+				print ("Failed to close " + archive.getName() + ": " + e.getMessage());
+			}
+		}
+	}
+}
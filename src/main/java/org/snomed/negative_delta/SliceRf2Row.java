@@ -0,0 +1,102 @@
+package org.snomed.negative_delta;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A row whose text remains as UTF-8 bytes in a (typically mapped) buffer, 
+ * and is only decoded when it is needed for output or comparison.
+ */
+public class SliceRf2Row extends Rf2Row {
+	
+	private final ByteBuffer buffer;
+	private final int offset;
+	private final int length;
+	
+	public SliceRf2Row(ByteBuffer buffer, int offset, int length, long effectiveTime) {
+		super(effectiveTime);
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+	}
+	
+	static String decode(ByteBuffer buffer, int offset, int length) {
+		byte[] bytes = new byte[length];
+		//Absolute reads, so that the buffer can be shared between threads
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	@Override
+	String getId() {
+		int end = offset;
+		while (end < offset + length && buffer.get(end) != '\t') {
+			end++;
+		}
+		return decode(buffer, offset, end - offset);
+	}
+	
+	@Override
+	String getField(int position) {
+		int fieldStart = offset;
+		int end = offset + length;
+		for (int field = 0; field < position; field++) {
+			while (fieldStart < end && buffer.get(fieldStart) != '\t') {
+				fieldStart++;
+			}
+			if (fieldStart == end) {
+				return "";
+			}
+			fieldStart++;
+		}
+		int fieldEnd = fieldStart;
+		while (fieldEnd < end && buffer.get(fieldEnd) != '\t') {
+			fieldEnd++;
+		}
+		return decode(buffer, fieldStart, fieldEnd - fieldStart);
+	}
+	
+	@Override
+	long getSctidField(int position) {
+		int field = 0;
+		long sctid = 0;
+		int digits = 0;
+		for (int i = offset; i < offset + length; i++) {
+			byte b = buffer.get(i);
+			if (b == '\t') {
+				if (field == position) {
+					break;
+				}
+				field++;
+			} else if (field == position) {
+				if (b < '0' || b > '9' || ++digits > MAX_SCTID_LENGTH) {
+					return -1;
+				}
+				sctid = sctid * 10 + (b - '0');
+			}
+		}
+		return field == position && digits > 0 ? sctid : -1;
+	}
+	
+	@Override
+	public long getFingerprint() {
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = offset; i < offset + length; i++) {
+			hash = (hash ^ (buffer.get(i) & 0xFF)) * FNV_PRIME;
+		}
+		return hash;
+	}
+	
+	@Override
+	public void writeTo(Rf2Writer out) throws IOException {
+		out.writeLine(buffer, offset, length);
+	}
+	
+	@Override
+	public String toString() {
+		return decode(buffer, offset, length);
+	}
+}
@@ -0,0 +1,119 @@
+package org.snomed.negative_delta;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Counts and timings for the processing of one table.  Phases run more than once when a table
+ * is partitioned, in which case their times and counts accumulate.  Counts may be added to from
+ * several threads when a table is split.
+ */
+public class TableMetrics {
+	
+	//Each of the files written for a table
+	public enum Output { FULL, SNAPSHOT, DELTA, NEW_STATE }
+	
+	private final String tableName;
+	private final Map<Phase, Long> phaseNanos = new EnumMap<Phase, Long>(Phase.class);
+	private final long[] rowsOut = new long[Output.values().length];
+	private final long[] bytesOut = new long[Output.values().length];
+	private long rowsIn;
+	private long bytesIn;
+	private long deletionRows;
+	private long rowsRemoved;
+	private long rowsTruncated;
+	private long peakHeapBytes;
+	private long estimatedHeapBytes;
+	private long totalNanos;
+	private String status = "not started";
+	
+	public TableMetrics(String tableName) {
+		this.tableName = tableName;
+	}
+	
+	public PhaseTimer start(Phase phase) {
+		return PhaseTimer.start(tableName, phase);
+	}
+	
+	public synchronized void end(PhaseTimer timer, Phase phase, long rows, long bytes) {
+		long nanos = timer.end(rows, bytes);
+		Long soFar = phaseNanos.get(phase);
+		phaseNanos.put(phase, soFar == null ? nanos : soFar + nanos);
+		sampleHeap();
+	}
+	
+	/**
+	 * The heap is shared by all tables in progress, so this is the high water mark of the whole 
+	 * heap while this table was being processed, sampled at the end of each phase.
+	 */
+	private void sampleHeap() {
+		long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		peakHeapBytes = Math.max(peakHeapBytes, used);
+	}
+	
+	public synchronized void addInput(long rows, long bytes) {
+		rowsIn += rows;
+		bytesIn += bytes;
+	}
+	
+	public synchronized void addDeletionRows(long rows) {
+		deletionRows += rows;
+	}
+	
+	public synchronized void addRowsRemoved(long rows) {
+		rowsRemoved += rows;
+	}
+	
+	public synchronized void addRowsTruncated(long rows) {
+		rowsTruncated += rows;
+	}
+	
+	public synchronized void addRowsOut(Output output, long rows) {
+		rowsOut[output.ordinal()] += rows;
+	}
+	
+	public synchronized void setBytesOut(Output output, long bytes) {
+		bytesOut[output.ordinal()] = bytes;
+	}
+	
+	public synchronized void setEstimatedHeapBytes(long estimatedHeapBytes) {
+		this.estimatedHeapBytes = estimatedHeapBytes;
+	}
+	
+	public synchronized void setTotalNanos(long totalNanos) {
+		this.totalNanos = totalNanos;
+	}
+	
+	public synchronized void setStatus(String status) {
+		this.status = status;
+	}
+	
+	public String getTableName() {
+		return tableName;
+	}
+	
+	synchronized void toJson(StringBuilder json, String indent) {
+		json.append(indent).append("{\n");
+		RunReport.field(json, indent + "\t", "table", tableName).append(",\n");
+		RunReport.field(json, indent + "\t", "status", status).append(",\n");
+		RunReport.field(json, indent + "\t", "durationMs", totalNanos / 1000000).append(",\n");
+		RunReport.field(json, indent + "\t", "rowsIn", rowsIn).append(",\n");
+		RunReport.field(json, indent + "\t", "bytesIn", bytesIn).append(",\n");
+		RunReport.field(json, indent + "\t", "deletionRows", deletionRows).append(",\n");
+		RunReport.field(json, indent + "\t", "rowsRemoved", rowsRemoved).append(",\n");
+		RunReport.field(json, indent + "\t", "rowsTruncated", rowsTruncated).append(",\n");
+		RunReport.field(json, indent + "\t", "estimatedHeapBytes", estimatedHeapBytes).append(",\n");
+		RunReport.field(json, indent + "\t", "peakHeapBytes", peakHeapBytes).append(",\n");
+		json.append(indent).append("\t\"phasesMs\": ");
+		RunReport.phasesToJson(json, phaseNanos);
+		json.append(",\n").append(indent).append("\t\"outputs\": {");
+		boolean first = true;
+		for (Output output : Output.values()) {
+			json.append(first ? "\n" : ",\n").append(indent).append("\t\t\"").append(output.name()).append("\": {\"rows\": ")
+				.append(rowsOut[output.ordinal()]).append(", \"bytes\": ").append(bytesOut[output.ordinal()]).append("}");
+			first = false;
+		}
+		json.append("\n").append(indent).append("\t}\n").append(indent).append("}");
+	}
+}
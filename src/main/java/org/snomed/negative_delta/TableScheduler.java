@@ -0,0 +1,124 @@
+package org.snomed.negative_delta;
+
+import static org.snomed.util.GlobalUtils.print;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.snomed.ApplicationException;
+
+/**
+ * Runs table jobs on a bounded pool, largest input first so that the longest running 
+ * tables (relationships, descriptions) start straight away and the small refsets fill 
+ * in around them.  The first failure cancels any remaining work and is rethrown once the
+ * cancelled tables have stopped, so that none is still writing its output when the caller
+ * goes on to report, or clean up after, the failure.
+ * 
+ * A job is only started once its estimated heap cost fits within what is left of the heap 
+ * budget, so two large tables are not run together even when threads are free.  Smaller 
+ * tables which do fit are started ahead of a larger one left waiting.  A table estimated 
+ * to need more than the whole budget is run once nothing else is.
+ */
+public class TableScheduler {
+	
+	//How long to wait for cancelled tables to stop before giving up on them
+	private static final long TERMINATION_TIMEOUT_SECONDS = 60;
+	
+	private final int parallelism;
+	private final long heapBudget;
+	
+	public TableScheduler(int parallelism, long heapBudget) {
+		this.parallelism = parallelism;
+		this.heapBudget = heapBudget;
+	}
+	
+	public void runAll(List<FileProcessor> jobs) throws ApplicationException {
+		List<FileProcessor> ordered = new ArrayList<FileProcessor>(jobs);
+		Collections.sort(ordered, new Comparator<FileProcessor>() {
+			@Override
+			public int compare(FileProcessor a, FileProcessor b) {
+				return Long.compare(b.getInputSize(), a.getInputSize());
+			}
+		});
+		
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "table-" + count.incrementAndGet());
+			}
+		});
+		CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+		Map<Future<Void>, FileProcessor> submitted = new HashMap<Future<Void>, FileProcessor>();
+		List<FileProcessor> waiting = new LinkedList<FileProcessor>(ordered);
+		int running = 0;
+		long reserved = 0;
+		try {
+			while (!waiting.isEmpty() || running > 0) {
+				//Start, largest first, whatever fits alongside the tables already running
+				Iterator<FileProcessor> candidates = waiting.iterator();
+				while (running < parallelism && candidates.hasNext()) {
+					FileProcessor job = candidates.next();
+					long cost = job.getEstimatedHeapCost();
+					if (running > 0 && reserved + cost > heapBudget) {
+						continue;
+					}
+					if (cost > heapBudget) {
+						print ("** " + job.getTableName() + " is estimated to need " + toMb(cost) + "MB, more than the heap budget of " + toMb(heapBudget) + "MB, so is run on its own");
+					}
+					submitted.put(completion.submit(job), job);
+					candidates.remove();
+					reserved += cost;
+					running++;
+				}
+				Future<Void> done = completion.take();
+				running--;
+				reserved -= submitted.get(done).getEstimatedHeapCost();
+				try {
+					done.get();
+				} catch (ExecutionException e) {
+					for (Future<Void> other : submitted.keySet()) {
+						other.cancel(true);
+					}
+					throw new ApplicationException("Processing of " + submitted.get(done).getTableName() + " failed", e.getCause());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ApplicationException("Interrupted while waiting for tables to complete", e);
+		} finally {
+			executor.shutdownNow();
+			awaitTermination(executor);
+		}
+		print ("All parallel processes complete.");
+	}
+	
+	private static void awaitTermination(ExecutorService executor) {
+		try {
+			if (!executor.awaitTermination(TERMINATION_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+				print ("** Tables still running " + TERMINATION_TIMEOUT_SECONDS + "s after being cancelled");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private static long toMb(long bytes) {
+		return bytes / (1024 * 1024);
+	}
+}
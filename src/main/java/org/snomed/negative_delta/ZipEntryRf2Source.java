@@ -0,0 +1,48 @@
+package org.snomed.negative_delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An RF2 file read straight out of a release archive, without first being extracted to disk.
+ * ZipFile supports concurrent streams, so one archive may be shared by many table threads.
+ */
+public class ZipEntryRf2Source implements Rf2Source {
+	
+	private final ZipFile archive;
+	private final ZipEntry entry;
+	
+	public ZipEntryRf2Source(ZipFile archive, ZipEntry entry) {
+		this.archive = archive;
+		this.entry = entry;
+	}
+
+	@Override
+	public String getName() {
+		String name = entry.getName();
+		return name.substring(name.lastIndexOf('/') + 1);
+	}
+
+	@Override
+	public InputStream openStream() throws IOException {
+		return archive.getInputStream(entry);
+	}
+
+	@Override
+	public long getSize() {
+		return entry.getSize();
+	}
+
+	@Override
+	public File getFile() {
+		return null;
+	}
+	
+	@Override
+	public String toString() {
+		return archive.getName() + "!" + entry.getName();
+	}
+}
@@ -0,0 +1,206 @@
+package org.snomed.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.snomed.ApplicationException;
+
+/**
+ * Builds a zip archive from entries whose content is compressed as it is written, rather than 
+ * written out as loose files and read back in to be zipped.  Each entry is deflated through a 
+ * ParallelDeflaterOutputStream into its own spill file, so any number of entries may be written 
+ * concurrently.  build() then assembles the archive by copying the already compressed bytes.
+ * 
+ * Zip64 is not supported, so each entry (and the archive) must remain under 4GB.
+ */
+public class ArchiveBuilder {
+	
+	private static final int LOCAL_HEADER_SIG = 0x04034b50;
+	private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIR_SIG = 0x06054b50;
+	private static final short VERSION = 20;
+	private static final short UTF8_FLAG = 0x0800;
+	private static final short DEFLATED = 8;
+	private static final long MAX_ZIP32 = 0xFFFFFFFFL;
+	private static final int MAX_ENTRIES = 0xFFFF;
+	
+	private final String rootName;
+	private final File spillLocation;
+	private final ExecutorService compressors;
+	private final int maxChunksInFlight;
+	private final List<Entry> entries = new ArrayList<Entry>();
+	
+	private static class Entry {
+		String name;
+		File spillFile;
+		long crc;
+		long compressedSize;
+		long uncompressedSize;
+		long localHeaderOffset;
+	}
+	
+	/**
+	 * @param rootName the top level directory within the archive, which also names the archive itself
+	 */
+	public ArchiveBuilder(String rootName, File spillLocation, ExecutorService compressors, int compressionThreads) {
+		this.rootName = rootName;
+		this.spillLocation = spillLocation;
+		this.compressors = compressors;
+		//Enough to keep every compressor busy, plus one being filled
+		this.maxChunksInFlight = compressionThreads + 1;
+	}
+	
+	/**
+	 * @param relativePath location within the archive's root directory
+	 * @return a stream which compresses as it is written, and registers the entry when closed
+	 */
+	public OutputStream openEntry(String relativePath) throws ApplicationException {
+		final Entry entry = new Entry();
+		entry.name = rootName + "/" + relativePath.replace(File.separatorChar, '/');
+		try {
+			entry.spillFile = File.createTempFile("entry", ".deflate", spillLocation);
+			OutputStream spill = new BufferedOutputStream(new FileOutputStream(entry.spillFile), 256 * 1024);
+			return new ParallelDeflaterOutputStream(spill, compressors, maxChunksInFlight) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					entry.crc = getCrc();
+					entry.compressedSize = getCompressedSize();
+					entry.uncompressedSize = getUncompressedSize();
+					registerEntry(entry);
+				}
+			};
+		} catch (IOException e) {
+			throw new ApplicationException("Unable to open archive entry " + entry.name, e);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return rootName + ".zip";
+	}
+	
+	private synchronized void registerEntry(Entry entry) {
+		entries.add(entry);
+	}
+	
+	/**
+	 * Writes the archive into the current directory, named after the root directory, 
+	 * with a numeric suffix if that file already exists.
+	 */
+	public synchronized File build() throws ApplicationException {
+		if (entries.isEmpty()) {
+			GlobalUtils.print ("No files found to create archive " + rootName);
+			return null;
+		}
+		if (entries.size() > MAX_ENTRIES) {
+			throw new ApplicationException("Archive " + rootName + " would need Zip64 to hold " + entries.size() + " entries");
+		}
+		String zipFileName = rootName + ".zip";
+		int fileNameModifier = 1;
+		while (new File(zipFileName).exists()) {
+			zipFileName = rootName + "_" + fileNameModifier++ + ".zip";
+		}
+		File zipFile = new File(zipFileName);
+		GlobalUtils.print("Creating archive : " + zipFileName + " from " + entries.size() + " compressed entries");
+		//Sorted for a consistent archive, regardless of which table finished first
+		Collections.sort(entries, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.name.compareTo(b.name);
+			}
+		});
+		int[] dosTime = dosDateTime(System.currentTimeMillis());
+		try (FileOutputStream fos = new FileOutputStream(zipFile);
+				FileChannel out = fos.getChannel()) {
+			for (Entry entry : entries) {
+				checkZip32(entry.compressedSize, entry);
+				checkZip32(entry.uncompressedSize, entry);
+				entry.localHeaderOffset = out.position();
+				checkZip32(entry.localHeaderOffset, entry);
+				byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+				ByteBuffer header = littleEndian(30 + name.length);
+				header.putInt(LOCAL_HEADER_SIG).putShort(VERSION).putShort(UTF8_FLAG).putShort(DEFLATED)
+					.putShort((short) dosTime[0]).putShort((short) dosTime[1])
+					.putInt((int) entry.crc).putInt((int) entry.compressedSize).putInt((int) entry.uncompressedSize)
+					.putShort((short) name.length).putShort((short) 0).put(name);
+				writeFully(out, header);
+				GlobalUtils.print(" Adding: " + entry.name);
+				try (FileInputStream in = new FileInputStream(entry.spillFile);
+						FileChannel spill = in.getChannel()) {
+					long copied = 0;
+					while (copied < entry.compressedSize) {
+						copied += spill.transferTo(copied, entry.compressedSize - copied, out);
+					}
+				}
+				GlobalUtils.delete(entry.spillFile);
+			}
+			long centralDirOffset = out.position();
+			for (Entry entry : entries) {
+				byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+				ByteBuffer header = littleEndian(46 + name.length);
+				header.putInt(CENTRAL_HEADER_SIG).putShort(VERSION).putShort(VERSION).putShort(UTF8_FLAG).putShort(DEFLATED)
+					.putShort((short) dosTime[0]).putShort((short) dosTime[1])
+					.putInt((int) entry.crc).putInt((int) entry.compressedSize).putInt((int) entry.uncompressedSize)
+					.putShort((short) name.length).putShort((short) 0).putShort((short) 0)  //name, extra and comment lengths
+					.putShort((short) 0).putShort((short) 0).putInt(0)  //disk number, internal and external attributes
+					.putInt((int) entry.localHeaderOffset).put(name);
+				writeFully(out, header);
+			}
+			long centralDirSize = out.position() - centralDirOffset;
+			if (centralDirOffset > MAX_ZIP32 || centralDirSize > MAX_ZIP32) {
+				throw new ApplicationException("Archive " + zipFileName + " would need Zip64 as it exceeds 4GB");
+			}
+			ByteBuffer end = littleEndian(22);
+			end.putInt(END_OF_CENTRAL_DIR_SIG).putShort((short) 0).putShort((short) 0)
+				.putShort((short) entries.size()).putShort((short) entries.size())
+				.putInt((int) centralDirSize).putInt((int) centralDirOffset).putShort((short) 0);
+			writeFully(out, end);
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to create archive " + zipFileName, e);
+		}
+		return zipFile;
+	}
+	
+	private void checkZip32(long value, Entry entry) throws ApplicationException {
+		if (value > MAX_ZIP32) {
+			throw new ApplicationException("Archive entry " + entry.name + " would need Zip64 as it exceeds 4GB");
+		}
+	}
+	
+	private static ByteBuffer littleEndian(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+	
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+	
+	/**
+	 * @return MS-DOS format time and date, as used in zip headers
+	 */
+	static int[] dosDateTime(long millis) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(millis);
+		int time = (cal.get(Calendar.HOUR_OF_DAY) << 11) | (cal.get(Calendar.MINUTE) << 5) | (cal.get(Calendar.SECOND) >> 1);
+		int date = ((cal.get(Calendar.YEAR) - 1980) << 9) | ((cal.get(Calendar.MONTH) + 1) << 5) | cal.get(Calendar.DAY_OF_MONTH);
+		return new int[] { time, date };
+	}
+}
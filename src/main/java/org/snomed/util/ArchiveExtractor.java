@@ -0,0 +1,154 @@
+package org.snomed.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.snomed.ApplicationException;
+
+/**
+ * Extracts selected entries of a zip archive into a single flat directory.  The central
+ * directory is read up front rather than streaming the whole archive.  Only the entries whose names match are ever inflated, and they are
+ * inflated concurrently on the supplied workers, largest first so that one large Full file
+ * does not end up queued behind all the small ones.
+ */
+public class ArchiveExtractor {
+
+	private final ExecutorService workers;
+
+	public ArchiveExtractor(ExecutorService workers) {
+		this.workers = workers;
+	}
+
+	/**
+	 * @param matchArray an entry is extracted (once) if its file name contains any of these, or if any is null
+	 * @return the extracted files
+	 */
+	public List<File> extractFlat(File archive, File targetDir, String[] matchArray) throws ApplicationException {
+		if (!targetDir.exists() || !targetDir.isDirectory()) {
+			throw new ApplicationException(targetDir + " is not a viable directory in which to extract archive");
+		}
+		ZipFile zipFile = null;
+		try {
+			zipFile = new ZipFile(archive);
+			List<Extraction> selected = new ArrayList<Extraction>();
+			Map<String, String> targetNames = new HashMap<String, String>();
+			Enumeration<? extends ZipEntry> entries = zipFile.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if (!entry.isDirectory()) {
+					String extractedFilename = Paths.get(entry.getName()).getFileName().toString();
+					if (matches(extractedFilename, matchArray)) {
+						//If the filename is a beta file with x prefix, remove the prefix
+						if (extractedFilename.startsWith(GlobalUtils.BETA_PREFIX)) {
+							extractedFilename = extractedFilename.substring(1);
+						}
+						String previous = targetNames.put(extractedFilename, entry.getName());
+						if (previous != null) {
+							throw new ApplicationException(archive.getName() + " contains both " + previous + " and " + entry.getName() + " which would both be extracted to " + extractedFilename);
+						}
+						selected.add(new Extraction(zipFile, entry, new File(targetDir, extractedFilename)));
+					}
+				}
+			}
+
+			Collections.sort(selected, new Comparator<Extraction>() {
+				@Override
+				public int compare(Extraction a, Extraction b) {
+					return Long.compare(b.entry.getSize(), a.entry.getSize());
+				}
+			});
+
+			List<Future<File>> extractions = new ArrayList<Future<File>>();
+			for (Extraction extraction : selected) {
+				extractions.add(workers.submit(extraction));
+			}
+			return await(archive, extractions);
+		} catch (IOException e) {
+			throw new ApplicationException("Failed to expand archive " + archive.getName(), e);
+		} finally {
+			if (zipFile != null) {
+				try {
+					zipFile.close();
+				} catch (IOException e) {
+					GlobalUtils.print("Failed to close archive " + archive.getName());
+				}
+			}
+		}
+	}
+
+	private static boolean matches(String filename, String[] matchArray) {
+		for (String matchStr : matchArray) {
+			if (matchStr == null || filename.contains(matchStr)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Waits for every extraction, even after one has failed, so that the archive is not
+	 * closed while another worker is still reading from it.
+	 */
+	private static List<File> await(File archive, List<Future<File>> extractions) throws ApplicationException {
+		List<File> extracted = new ArrayList<File>();
+		Throwable failure = null;
+		for (Future<File> extraction : extractions) {
+			try {
+				extracted.add(extraction.get());
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (failure == null) {
+					failure = e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw new ApplicationException("Failed to expand archive " + archive.getName(), failure);
+		}
+		return extracted;
+	}
+
+	private static class Extraction implements Callable<File> {
+		private final ZipFile zipFile;
+		private final ZipEntry entry;
+		private final File target;
+
+		Extraction(ZipFile zipFile, ZipEntry entry, File target) {
+			this.zipFile = zipFile;
+			this.entry = entry;
+			this.target = target;
+		}
+
+		@Override
+		public File call() throws IOException {
+			InputStream in = zipFile.getInputStream(entry);
+			try {
+				Files.copy(in, target.toPath());
+			} finally {
+				in.close();
+			}
+			GlobalUtils.print(".", false);
+			return target;
+		}
+	}
+}
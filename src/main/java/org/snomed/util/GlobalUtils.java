@@ -10,12 +10,7 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Collection;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 import org.snomed.ApplicationException;
@@ -48,12 +43,6 @@ public class GlobalUtils {
 		}
 	}
 	
-	public static synchronized void writeToFile(PrintWriter out, Collection<? extends Object> lines) {
-		for (Object line : lines) {
-			out.print(line.toString() + LINE_DELIMITER);
-		}
-	}
-
 	public static File ensureFileExists(String fileName) throws IOException {
 		File file = new File(fileName);
 		if (!file.exists()) {
@@ -99,42 +88,6 @@ public class GlobalUtils {
 		return file;
 	}
 	
-	public static void unzipFlat(File archive, File targetDir, String[] matchArray) throws ApplicationException {
-
-		if (!targetDir.exists() || !targetDir.isDirectory()) {
-			throw new ApplicationException(targetDir + " is not a viable directory in which to extract archive");
-		}
-		try {
-			ZipInputStream zis = new ZipInputStream(new FileInputStream(archive));
-			ZipEntry ze = zis.getNextEntry();
-			try {
-				while (ze != null) {
-					if (!ze.isDirectory()) {
-						Path p = Paths.get(ze.getName());
-						String extractedFilename = p.getFileName().toString();
-						for (String matchStr : matchArray) {
-							if (matchStr == null || extractedFilename.contains(matchStr)) {
-								//If the filename is a beta file with x prefix, remove the prefix
-								if (extractedFilename.startsWith(BETA_PREFIX)) {
-									extractedFilename = extractedFilename.substring(1);
-								}
-								File extractedFile = new File(targetDir, extractedFilename);
-								print(".", false);
-								Files.copy(zis, extractedFile.toPath());
-							}
-						}
-					}
-					ze = zis.getNextEntry();
-				}
-			} finally {
-				zis.closeEntry();
-				zis.close();
-			}
-		} catch (IOException e) {
-			throw new ApplicationException("Failed to expand archive " + archive.getName(), e);
-		}
-	}
-	
 	public static void delete(File f) {
 		try {
 			if (f != null && f.exists()) {
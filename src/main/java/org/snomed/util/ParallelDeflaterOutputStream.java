@@ -0,0 +1,154 @@
+package org.snomed.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Produces a raw deflate stream (as held in a zip entry), compressing fixed size chunks 
+ * of the input concurrently on a shared pool.  Each chunk is deflated independently and 
+ * ended with a sync flush, which byte aligns it, so the compressed chunks can simply be 
+ * concatenated.  Only the final chunk is finished, marking the last block of the stream.
+ * 
+ * The CRC and sizes needed for the zip headers are gathered as the data passes through.
+ */
+public class ParallelDeflaterOutputStream extends OutputStream {
+	
+	static final int CHUNK_SIZE = 1024 * 1024;
+	
+	private final OutputStream out;
+	private final ExecutorService compressors;
+	private final int maxChunksInFlight;
+	private final Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+	private final CRC32 crc = new CRC32();
+	private byte[] chunk = new byte[CHUNK_SIZE];
+	private int chunkLength = 0;
+	private long uncompressedSize = 0;
+	private long compressedSize = 0;
+	private boolean closed = false;
+	
+	public ParallelDeflaterOutputStream(OutputStream out, ExecutorService compressors, int maxChunksInFlight) {
+		this.out = out;
+		this.compressors = compressors;
+		this.maxChunksInFlight = maxChunksInFlight;
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		if (chunkLength == chunk.length) {
+			submitChunk(false);
+		}
+		chunk[chunkLength++] = (byte) b;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (chunkLength == chunk.length) {
+				submitChunk(false);
+			}
+			int toCopy = Math.min(len, chunk.length - chunkLength);
+			System.arraycopy(b, off, chunk, chunkLength, toCopy);
+			chunkLength += toCopy;
+			off += toCopy;
+			len -= toCopy;
+		}
+	}
+	
+	private void submitChunk(final boolean isLast) throws IOException {
+		final byte[] data = chunk;
+		final int length = chunkLength;
+		crc.update(data, 0, length);
+		uncompressedSize += length;
+		inFlight.add(compressors.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return deflate(data, length, isLast);
+			}
+		}));
+		chunk = new byte[CHUNK_SIZE];
+		chunkLength = 0;
+		//Limit how far we can run ahead of the compressors
+		while (inFlight.size() >= maxChunksInFlight) {
+			writeOldestChunk();
+		}
+	}
+	
+	private void writeOldestChunk() throws IOException {
+		try {
+			byte[] compressed = inFlight.removeFirst().get();
+			out.write(compressed);
+			compressedSize += compressed.length;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to compress", e.getCause());
+		}
+	}
+	
+	static byte[] deflate(byte[] data, int length, boolean isLast) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(data, 0, length);
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4 + 64);
+			byte[] buffer = new byte[64 * 1024];
+			if (isLast) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					int n = deflater.deflate(buffer);
+					compressed.write(buffer, 0, n);
+				}
+			} else {
+				int n;
+				//A full output buffer means there may be more to come
+				do {
+					n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					compressed.write(buffer, 0, n);
+				} while (n == buffer.length);
+			}
+			return compressed.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			submitChunk(true);
+			while (!inFlight.isEmpty()) {
+				writeOldestChunk();
+			}
+		} finally {
+			for (Future<byte[]> abandoned : inFlight) {
+				abandoned.cancel(true);
+			}
+			out.close();
+		}
+	}
+	
+	public long getCrc() {
+		return crc.getValue();
+	}
+	
+	public long getUncompressedSize() {
+		return uncompressedSize;
+	}
+	
+	public long getCompressedSize() {
+		return compressedSize;
+	}
+}
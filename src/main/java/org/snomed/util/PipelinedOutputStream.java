@@ -0,0 +1,139 @@
+package org.snomed.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Hands what is written to a separate stage, which writes it on to the underlying stream in
+ * chunks while the caller carries on producing the next.  At most maxChunksInFlight chunks
+ * are held between the two, so a slow stream holds up the caller rather than letting the
+ * output pile up on the heap.
+ *
+ * A failure of the underlying stream is reported by the next write, or by close.
+ */
+public class PipelinedOutputStream extends OutputStream {
+
+	static final int CHUNK_SIZE = 256 * 1024;
+	private static final byte[] END = new byte[0];
+
+	private final OutputStream out;
+	private final BlockingQueue<byte[]> chunks;
+	private final CountDownLatch finished = new CountDownLatch(1);
+	private volatile IOException failure;
+	private byte[] chunk = new byte[CHUNK_SIZE];
+	private int chunkLength = 0;
+	private boolean closed = false;
+
+	public PipelinedOutputStream(OutputStream out, ExecutorService stages, int maxChunksInFlight) {
+		this.out = out;
+		this.chunks = new ArrayBlockingQueue<byte[]>(maxChunksInFlight);
+		stages.execute(new Runnable() {
+			@Override
+			public void run() {
+				writeBehind();
+			}
+		});
+	}
+
+	private void writeBehind() {
+		try {
+			while (true) {
+				byte[] data = chunks.take();
+				if (data == END) {
+					break;
+				}
+				//Once failed, carry on taking chunks so that the caller is never left waiting
+				if (failure == null) {
+					try {
+						out.write(data);
+					} catch (IOException e) {
+						failure = e;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = new IOException("Interrupted while writing", e);
+		} finally {
+			finished.countDown();
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (chunkLength == chunk.length) {
+			submitChunk();
+		}
+		chunk[chunkLength++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (chunkLength == chunk.length) {
+				submitChunk();
+			}
+			int toCopy = Math.min(len, chunk.length - chunkLength);
+			System.arraycopy(b, off, chunk, chunkLength, toCopy);
+			chunkLength += toCopy;
+			off += toCopy;
+			len -= toCopy;
+		}
+	}
+
+	private void submitChunk() throws IOException {
+		checkFailure();
+		if (chunkLength == 0) {
+			return;
+		}
+		byte[] data = chunkLength == chunk.length ? chunk : Arrays.copyOf(chunk, chunkLength);
+		put(data);
+		chunk = new byte[CHUNK_SIZE];
+		chunkLength = 0;
+	}
+
+	private void put(byte[] data) throws IOException {
+		try {
+			chunks.put(data);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing", e);
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null) {
+			throw new IOException("Failed to write", failure);
+		}
+	}
+
+	/**
+	 * Waits for everything written so far to reach the underlying stream, then closes it
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			submitChunk();
+		} finally {
+			try {
+				put(END);
+				finished.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while writing", e);
+			} finally {
+				out.close();
+			}
+		}
+		checkFailure();
+	}
+}
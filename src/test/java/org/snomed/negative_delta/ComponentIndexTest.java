@@ -0,0 +1,225 @@
+package org.snomed.negative_delta;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.snomed.ApplicationException;
+
+import junit.framework.TestCase;
+
+public class ComponentIndexTest extends TestCase {
+
+	private static Rf2Row row(long id, String effectiveTime, String active) {
+		return new Rf2Row(id + "\t" + effectiveTime + "\t" + active + "\t900000000000207008\t" + id, false);
+	}
+
+	public void testSctidKeys() throws ApplicationException {
+		assertEquals(0L, ComponentIndex.keyHi("100005"));
+		assertEquals(100005L, ComponentIndex.keyLo("100005"));
+		ByteBuffer buffer = ascii("x\t100005\t");
+		assertEquals(0L, ComponentIndex.keyHi(buffer, 2, 6));
+		assertEquals(100005L, ComponentIndex.keyLo(buffer, 2, 6));
+	}
+
+	public void testUuidKeys() throws ApplicationException {
+		UUID uuid = UUID.fromString("800aa109-431f-4407-a431-6fe65e9db160");
+		String id = uuid.toString();
+		assertEquals(uuid.getMostSignificantBits(), ComponentIndex.keyHi(id));
+		assertEquals(uuid.getLeastSignificantBits(), ComponentIndex.keyLo(id));
+		//Decoding from bytes must agree with decoding from the String
+		ByteBuffer buffer = ascii("\t" + id.toUpperCase() + "\t");
+		assertEquals(uuid.getMostSignificantBits(), ComponentIndex.keyHi(buffer, 1, id.length()));
+		assertEquals(uuid.getLeastSignificantBits(), ComponentIndex.keyLo(buffer, 1, id.length()));
+
+		ComponentIndex index = new ComponentIndex();
+		Rf2Row row = new Rf2Row(id + "\t20170131\t1", false);
+		index.add(ComponentIndex.keyHi(id), ComponentIndex.keyLo(id), row);
+		assertSame(row, index.get(id)[0]);
+		//An SCTID with the same low word is a different component
+		assertFalse(index.contains(0L, uuid.getLeastSignificantBits()));
+	}
+
+	public void testUnsupportedKeys() {
+		String[] ids = { "", "12345678901234567890", "not-an-id", "00000000-0000-0000-a431-6fe65e9db160", "800aa109x431f-4407-a431-6fe65e9db160" };
+		for (String id : ids) {
+			try {
+				ComponentIndex.keyHi(id);
+				fail("Expected '" + id + "' to be rejected");
+			} catch (ApplicationException e) {
+				//Expected
+			}
+			try {
+				ComponentIndex.keyHi(ascii(id), 0, id.length());
+				fail("Expected '" + id + "' to be rejected as bytes");
+			} catch (ApplicationException e) {
+				//Expected
+			}
+		}
+	}
+
+	public void testCollidingKeysAreBothFound() {
+		long first = 100005L;
+		int firstSlot = slotOf(first);
+		long second = first + 1;
+		while (slotOf(second) != firstSlot) {
+			second++;
+		}
+		ComponentIndex index = new ComponentIndex(0);
+		Rf2Row firstRow = row(first, "20020131", "1");
+		Rf2Row secondRow = row(second, "20020131", "1");
+		index.add(0L, first, firstRow);
+		index.add(0L, second, secondRow);
+		assertEquals(2, index.size());
+		assertSame(firstRow, index.get(0L, first)[0]);
+		assertSame(secondRow, index.get(0L, second)[0]);
+		//The second is probed on to the next slot
+		assertEquals(first, index.loAt(firstSlot));
+		assertEquals(second, index.loAt((firstSlot + 1) % index.capacity()));
+		assertNull(index.get(1L, first));
+
+		//Removing from one leaves the other untouched
+		assertTrue(index.remove(0L, first, firstRow));
+		assertEquals(0, index.get(0L, first).length);
+		assertSame(secondRow, index.get(0L, second)[0]);
+	}
+
+	//Slot taken by a component alone in the smallest table
+	private static int slotOf(long lo) {
+		ComponentIndex index = new ComponentIndex(0);
+		index.add(0L, lo, row(lo, "20020131", "1"));
+		for (int slot = 0; slot < index.capacity(); slot++) {
+			if (index.isOccupied(slot)) {
+				return slot;
+			}
+		}
+		throw new IllegalStateException();
+	}
+
+	public void testResizeKeepsEveryComponent() {
+		ComponentIndex index = new ComponentIndex(0);
+		int initialCapacity = index.capacity();
+		int components = 10000;
+		for (long id = 0; id < components; id++) {
+			index.add(0L, id, row(id, "20020131", "1"));
+			index.add(0L, id, row(id, "20030131", "0"));
+		}
+		assertEquals(components, index.size());
+		assertEquals(components * 2, index.getRowCount());
+		assertTrue(index.capacity() > initialCapacity);
+		assertTrue(index.capacity() >= components * 2);
+		for (long id = 0; id < components; id++) {
+			Rf2Row[] history = index.get(0L, id);
+			assertEquals(2, history.length);
+			assertEquals(id + "\t20020131\t1\t900000000000207008\t" + id, history[0].toString());
+		}
+		int occupied = 0;
+		for (int slot = 0; slot < index.capacity(); slot++) {
+			if (index.isOccupied(slot)) {
+				occupied++;
+				assertSame(index.get(index.hiAt(slot), index.loAt(slot)), index.historyAt(slot));
+			}
+		}
+		assertEquals(components, occupied);
+	}
+
+	public void testHistoryHeldInEffectiveTimeOrder() {
+		ComponentIndex index = new ComponentIndex();
+		Rf2Row later = row(100005L, "20030131", "0");
+		Rf2Row earlier = row(100005L, "20020131", "1");
+		Rf2Row latest = row(100005L, "20170731", "1");
+		index.add(0L, 100005L, later);
+		index.add(0L, 100005L, latest);
+		index.add(0L, 100005L, earlier);
+		Rf2Row[] history = index.get(0L, 100005L);
+		assertEquals(3, history.length);
+		assertSame(earlier, history[0]);
+		assertSame(later, history[1]);
+		assertSame(latest, history[2]);
+	}
+
+	public void testSameEffectiveTimeRowsAreKeptUnlessIdentical() {
+		ComponentIndex index = new ComponentIndex();
+		Rf2Row first = row(100005L, "20020131", "1");
+		Rf2Row conflicting = row(100005L, "20020131", "0");
+		Rf2Row later = row(100005L, "20030131", "1");
+		index.add(0L, 100005L, later);
+		index.add(0L, 100005L, first);
+		index.add(0L, 100005L, conflicting);
+		//An exact duplicate line adds nothing
+		index.add(0L, 100005L, row(100005L, "20020131", "1"));
+		Rf2Row[] history = index.get(0L, 100005L);
+		assertEquals(3, history.length);
+		assertSame(first, history[0]);
+		assertSame(conflicting, history[1]);
+		assertSame(later, history[2]);
+	}
+
+	public void testCopyOnWriteLeavesOriginalUnchanged() {
+		ComponentIndex original = new ComponentIndex(0);
+		Rf2Row row = row(100005L, "20020131", "1");
+		original.add(0L, 100005L, row);
+		original.add(0L, 100005L, row(100005L, "20030131", "0"));
+		original.add(0L, 101009L, row(101009L, "20020131", "1"));
+
+		ComponentIndex copy = original.copyOnWrite();
+		assertSame(original.get(0L, 100005L), copy.get(0L, 100005L));
+		assertTrue(copy.remove(0L, 100005L, row));
+		copy.add(0L, 101009L, row(101009L, "20170731", "0"));
+		//Enough new components to resize the copy
+		for (long id = 200000L; id < 200100L; id++) {
+			copy.add(0L, id, row(id, "20170731", "1"));
+		}
+		copy.removeLaterThan(20020131L);
+
+		assertEquals(2, original.size());
+		assertEquals(3, original.getRowCount());
+		assertEquals(2, original.get(0L, 100005L).length);
+		assertSame(row, original.get(0L, 100005L)[0]);
+		assertEquals(1, original.get(0L, 101009L).length);
+		assertFalse(original.contains(0L, 200000L));
+
+		assertEquals(102, copy.size());
+		assertEquals(0, copy.get(0L, 100005L).length);
+		assertEquals(1, copy.get(0L, 101009L).length);
+		assertEquals(0, copy.get(0L, 200000L).length);
+	}
+
+	public void testRemoveLaterThan() {
+		ComponentIndex index = new ComponentIndex();
+		index.add(0L, 100005L, row(100005L, "20020131", "1"));
+		index.add(0L, 100005L, row(100005L, "20170731", "0"));
+		index.add(0L, 100005L, row(100005L, "20180131", "1"));
+		index.add(0L, 101009L, row(101009L, "20180131", "1"));
+		index.add(0L, 102001L, row(102001L, "20170731", "1"));
+
+		assertEquals(2, index.removeLaterThan(20170731L));
+		assertEquals(3, index.size());
+		assertEquals(3, index.getRowCount());
+		Rf2Row[] history = index.get(0L, 100005L);
+		assertEquals(2, history.length);
+		assertEquals(20170731L, history[1].getEffectiveTime());
+		//A component left with no rows is still known
+		assertTrue(index.contains(0L, 101009L));
+		assertEquals(0, index.get(0L, 101009L).length);
+		assertEquals(1, index.get(0L, 102001L).length);
+		assertEquals(0, index.removeLaterThan(20170731L));
+	}
+
+	public void testRemoveLaterThanBySlotRange() {
+		ComponentIndex index = new ComponentIndex();
+		for (long id = 0; id < 100; id++) {
+			index.add(0L, id, row(id, "20020131", "1"));
+			index.add(0L, id, row(id, "20180131", "0"));
+		}
+		int middle = index.capacity() / 2;
+		int removed = index.removeLaterThan(20170731L, 0, middle);
+		removed += index.removeLaterThan(20170731L, middle, index.capacity());
+		assertEquals(100, removed);
+		assertEquals(100, index.getRowCount());
+	}
+
+	private static ByteBuffer ascii(String text) {
+		return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+	}
+}
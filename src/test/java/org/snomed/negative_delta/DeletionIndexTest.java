@@ -0,0 +1,88 @@
+package org.snomed.negative_delta;
+
+import java.nio.ByteBuffer;
+
+import org.snomed.ApplicationException;
+
+import junit.framework.TestCase;
+
+public class DeletionIndexTest extends TestCase {
+
+	private static final String UUID_ID = "800aa109-431f-4407-a431-6fe65e9db160";
+
+	private static Rf2Row fullRow(String id, String effectiveTime, String active) {
+		return new Rf2Row(id + "\t" + effectiveTime + "\t" + active + "\t900000000000207008\t" + id, false);
+	}
+
+	//Negative delta rows carry deletionEffectiveTime and deletionActive after the effectiveTime and active fields
+	private static Rf2Row deletionRow(String id, String effectiveTime, String active) {
+		return new Rf2Row(id + "\t" + effectiveTime + "\t20200731\t" + active + "\t0\t900000000000207008\t" + id, true);
+	}
+
+	private static DeletionIndex index(Rf2Row... deletionRows) throws ApplicationException {
+		ComponentIndex deletions = new ComponentIndex();
+		for (Rf2Row row : deletionRows) {
+			String id = row.getId();
+			deletions.add(ComponentIndex.keyHi(id), ComponentIndex.keyLo(id), row);
+		}
+		return new DeletionIndex(deletions);
+	}
+
+	public void testMatchesOnlyTheDeletedRow() throws ApplicationException {
+		DeletionIndex index = index(deletionRow("100005", "20170731", "1"));
+		assertEquals(1, index.size());
+		assertFalse(index.match(0L, 100005L, fullRow("100005", "20020131", "1")));
+		assertFalse(index.match(0L, 100005L, fullRow("100005", "20170731", "0")));
+		assertFalse(index.match(0L, 101009L, fullRow("100005", "20170731", "1")));
+		assertEquals(1, index.getUnmatchedCount());
+		assertTrue(index.match(0L, 100005L, fullRow("100005", "20170731", "1")));
+		assertEquals(1, index.getMatchedCount());
+		assertEquals(0, index.getUnmatchedCount());
+	}
+
+	public void testMatchesRowsHeldAsBytes() throws ApplicationException {
+		DeletionIndex index = index(deletionRow("100005", "20170731", "1"));
+		Rf2Row full = fullRow("100005", "20170731", "1");
+		byte[] line = (full.toString() + "\r\n").getBytes();
+		Rf2Row slice = new SliceRf2Row(ByteBuffer.wrap(line), 0, line.length - 2, 20170731L);
+		assertTrue(index.match(0L, 100005L, slice));
+	}
+
+	public void testRowsOfTheSameComponentAndEffectiveTime() throws ApplicationException {
+		DeletionIndex index = index(deletionRow("100005", "20170731", "1"), deletionRow("100005", "20170731", "0"));
+		assertEquals(2, index.size());
+		assertTrue(index.match(0L, 100005L, fullRow("100005", "20170731", "0")));
+		assertEquals(1, index.getUnmatchedCount());
+		assertTrue(index.match(0L, 100005L, fullRow("100005", "20170731", "1")));
+		assertEquals(0, index.getUnmatchedCount());
+	}
+
+	public void testUuidKeys() throws ApplicationException {
+		DeletionIndex index = index(deletionRow(UUID_ID, "20170731", "1"));
+		long hi = ComponentIndex.keyHi(UUID_ID);
+		long lo = ComponentIndex.keyLo(UUID_ID);
+		assertFalse(index.match(0L, lo, fullRow(UUID_ID, "20170731", "1")));
+		assertTrue(index.match(hi, lo, fullRow(UUID_ID, "20170731", "1")));
+	}
+
+	public void testManyDeletions() throws ApplicationException {
+		ComponentIndex deletions = new ComponentIndex();
+		for (long id = 0; id < 5000; id++) {
+			deletions.add(0L, id, deletionRow(Long.toString(id), "20170731", "1"));
+			deletions.add(0L, id, deletionRow(Long.toString(id), "20180131", "0"));
+		}
+		DeletionIndex index = new DeletionIndex(deletions);
+		assertEquals(10000, index.size());
+		for (long id = 0; id < 5000; id += 2) {
+			assertTrue(index.match(0L, id, fullRow(Long.toString(id), "20180131", "0")));
+			assertFalse(index.match(0L, id, fullRow(Long.toString(id), "20180131", "1")));
+		}
+		assertEquals(2500, index.getMatchedCount());
+	}
+
+	public void testEmptyIndex() throws ApplicationException {
+		DeletionIndex index = index();
+		assertEquals(0, index.size());
+		assertFalse(index.match(0L, 100005L, fullRow("100005", "20170731", "1")));
+	}
+}
@@ -0,0 +1,190 @@
+package org.snomed.negative_delta;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.snomed.ApplicationException;
+import org.snomed.negative_delta.ProcessingOptions.RowStorage;
+
+import junit.framework.TestCase;
+
+public class PipelinedRf2ReaderTest extends TestCase {
+
+	//Rows of a single component, numbered from 0
+	private static class CountingReader implements Rf2Reader {
+		private final int rows;
+		volatile int position = -1;
+		volatile boolean closed = false;
+
+		CountingReader(int rows) {
+			this.rows = rows;
+		}
+
+		@Override
+		public boolean next() {
+			return ++position < rows;
+		}
+
+		@Override
+		public long getHi() {
+			return 0L;
+		}
+
+		@Override
+		public long getLo() {
+			return position;
+		}
+
+		@Override
+		public long getEffectiveTime() {
+			return 20170731L;
+		}
+
+		@Override
+		public Rf2Row getRow() {
+			return new Rf2Row(position + "\t20170731\t1", false);
+		}
+
+		@Override
+		public void writeLineTo(Rf2Writer out) throws IOException {
+			getRow().writeTo(out);
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	public void testReadsEveryRow() throws ApplicationException, IOException {
+		ExecutorService stages = Executors.newSingleThreadExecutor();
+		try {
+			int rows = PipelinedRf2Reader.BATCH_SIZE * 3 + 7;
+			CountingReader source = new CountingReader(rows);
+			PipelinedRf2Reader reader = new PipelinedRf2Reader(source, stages);
+			for (int row = 0; row < rows; row++) {
+				assertTrue(reader.next());
+				assertEquals(row, reader.getLo());
+			}
+			assertFalse(reader.next());
+			assertFalse(reader.next());
+			reader.close();
+			assertTrue(source.closed);
+		} finally {
+			stages.shutdownNow();
+		}
+	}
+
+	public void testInterruptedReadingIsReportedRatherThanWaitedOn() throws Exception {
+		ExecutorService stages = Executors.newSingleThreadExecutor();
+		CountingReader source = new CountingReader(PipelinedRf2Reader.BATCH_SIZE * (PipelinedRf2Reader.MAX_BATCHES_IN_FLIGHT + 4));
+		PipelinedRf2Reader reader = new PipelinedRf2Reader(source, stages);
+		//Left waiting for room, the reading stage is interrupted before it reaches the last batch
+		int lastRowBeforeWaiting = PipelinedRf2Reader.BATCH_SIZE * (PipelinedRf2Reader.MAX_BATCHES_IN_FLIGHT + 1) - 1;
+		while (source.position < lastRowBeforeWaiting) {
+			Thread.sleep(10);
+		}
+		stages.shutdownNow();
+		assertTrue(stages.awaitTermination(10, TimeUnit.SECONDS));
+		try {
+			while (reader.next()) {
+				//Take whatever was handed over
+			}
+			fail("Expected the missing batches to be reported");
+		} catch (ApplicationException e) {
+			//Expected
+		}
+		assertTrue(source.closed);
+		reader.close();
+	}
+
+	public void testColumnarLoadMatchesUnpipelined() throws Exception {
+		//More distinct terms than a dictionary column holds, so the term column overflows part way through
+		int components = 70000;
+		File file = writeDescriptions(components);
+		try {
+			Rf2File expected = new Rf2File(new FileRf2Source(file));
+			expected.loadFile(false);
+			ExecutorService stages = Executors.newSingleThreadExecutor();
+			Rf2File pipelined = new Rf2File(new FileRf2Source(file), RowStorage.COLUMNAR);
+			try {
+				pipelined.setPipeline(stages);
+				pipelined.loadFile(false);
+			} finally {
+				stages.shutdownNow();
+			}
+			assertEquals(expected.getRowsRead(), pipelined.getRowsRead());
+			ComponentIndex expectedRows = expected.getComponents();
+			ComponentIndex pipelinedRows = pipelined.getComponents();
+			assertEquals(components, pipelinedRows.size());
+			assertEquals(expectedRows.getRowCount(), pipelinedRows.getRowCount());
+			for (int slot = 0; slot < expectedRows.capacity(); slot++) {
+				if (!expectedRows.isOccupied(slot)) {
+					continue;
+				}
+				Rf2Row[] expectedHistory = expectedRows.historyAt(slot);
+				Rf2Row[] history = pipelinedRows.get(expectedRows.hiAt(slot), expectedRows.loAt(slot));
+				assertEquals(expectedHistory.length, history.length);
+				for (int i = 0; i < history.length; i++) {
+					assertTrue(history[i] instanceof ColumnarRf2Row);
+					assertEquals(expectedHistory[i].toString(), history[i].toString());
+				}
+			}
+			assertEquals(3, pipelinedRows.get(0L, 1000000011L).length);
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testColumnarRowsAreOnlyAddedAsTheCallerTakesThem() throws Exception {
+		File file = writeDescriptions(PipelinedRf2Reader.BATCH_SIZE * (PipelinedRf2Reader.MAX_BATCHES_IN_FLIGHT + 4));
+		ExecutorService stages = Executors.newSingleThreadExecutor();
+		try {
+			ArenaRf2Reader source = new ArenaRf2Reader(new FileRf2Source(file), RowStorage.COLUMNAR);
+			try (PipelinedRf2Reader reader = new PipelinedRf2Reader(source, stages)) {
+				assertTrue(reader.next());
+				//Give the reading stage time to run ahead until it waits for room
+				Thread.sleep(500);
+				assertEquals(PipelinedRf2Reader.BATCH_SIZE, ((ColumnarTable) source.getStore()).size());
+				int rows = 1;
+				while (reader.next()) {
+					assertTrue(reader.getRow() instanceof ColumnarRf2Row);
+					rows++;
+				}
+				assertEquals(rows, ((ColumnarTable) source.getStore()).size());
+			}
+		} finally {
+			stages.shutdownNow();
+			file.delete();
+		}
+	}
+
+	//Descriptions with a distinct term each, and for every hundredth component three more rows of a later
+	//effectiveTime: a conflicting pair, which are both kept, and an exact duplicate, which is not
+	private static File writeDescriptions(int components) throws IOException {
+		File file = File.createTempFile("sct2_Description_Full", ".txt");
+		try (OutputStream out = new FileOutputStream(file)) {
+			write(out, "id\teffectiveTime\tactive\tmoduleId\tconceptId\tlanguageCode\ttypeId\tterm\tcaseSignificanceId");
+			for (int component = 0; component < components; component++) {
+				String id = (1000000 + component) + "011";
+				write(out, id + "\t20020131\t1\t900000000000207008\t100005\ten\t900000000000013009\tTerm " + component + "\t900000000000448009");
+				if (component % 100 == 0) {
+					write(out, id + "\t20170731\t1\t900000000000207008\t100005\ten\t900000000000013009\tRevised " + component + "\t900000000000448009");
+					write(out, id + "\t20170731\t0\t900000000000207008\t100005\ten\t900000000000013009\tRevised " + component + "\t900000000000448009");
+					write(out, id + "\t20170731\t1\t900000000000207008\t100005\ten\t900000000000013009\tRevised " + component + "\t900000000000448009");
+				}
+			}
+		}
+		return file;
+	}
+
+	private static void write(OutputStream out, String line) throws IOException {
+		out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+	}
+}
@@ -0,0 +1,100 @@
+package org.snomed.negative_delta;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.snomed.ApplicationException;
+import org.snomed.util.GlobalUtils;
+
+import junit.framework.TestCase;
+
+public class ReleaseImageTest extends TestCase {
+
+	private int segmentSize;
+	private File dir;
+	private File source;
+
+	@Override
+	protected void setUp() throws IOException {
+		segmentSize = ReleaseImage.SEGMENT_SIZE;
+		//Small enough that most segments end in padding
+		ReleaseImage.SEGMENT_SIZE = 256;
+		dir = Files.createTempDirectory("image").toFile();
+		source = new File(dir, "sct2_Description_Full.txt");
+		try (OutputStream out = new FileOutputStream(source)) {
+			out.write("id\teffectiveTime\tactive\r\n".getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Override
+	protected void tearDown() {
+		ReleaseImage.SEGMENT_SIZE = segmentSize;
+		GlobalUtils.delete(dir);
+	}
+
+	private static Rf2Row row(long id, String effectiveTime, String active, String term) {
+		return new Rf2Row(id + "\t" + effectiveTime + "\t" + active + "\t900000000000207008\t" + term, false);
+	}
+
+	public void testLoadedRowsMatchThoseWritten() throws ApplicationException {
+		ComponentIndex rows = new ComponentIndex();
+		for (long id = 0; id < 200; id++) {
+			rows.add(0L, id, row(id, "20020131", "1", "Term " + id));
+			if (id % 3 == 0) {
+				rows.add(0L, id, row(id, "20170731", "1", "Revised term " + id));
+				rows.add(0L, id, row(id, "20170731", "0", "Revised term " + id));
+			}
+		}
+		ReleaseImage image = new ReleaseImage(dir, new FileRf2Source(source), "release");
+		assertFalse(image.isCurrent());
+		image.write(rows);
+		assertTrue(image.isCurrent());
+		assertTrue(new File(dir, source.getName() + ".img").length() > 2 * ReleaseImage.SEGMENT_SIZE);
+
+		ComponentIndex loaded = image.load();
+		assertEquals(rows.size(), loaded.size());
+		assertEquals(rows.getRowCount(), loaded.getRowCount());
+		for (int slot = 0; slot < rows.capacity(); slot++) {
+			if (!rows.isOccupied(slot)) {
+				continue;
+			}
+			Rf2Row[] expected = rows.historyAt(slot);
+			Rf2Row[] history = loaded.get(rows.hiAt(slot), rows.loAt(slot));
+			assertEquals(expected.length, history.length);
+			for (int i = 0; i < history.length; i++) {
+				assertTrue(history[i] instanceof SliceRf2Row);
+				assertEquals(expected[i].getEffectiveTime(), history[i].getEffectiveTime());
+				assertEquals(expected[i].toString(), history[i].toString());
+			}
+		}
+	}
+
+	public void testImageOfAnotherReleaseIsNotCurrent() throws ApplicationException {
+		ComponentIndex rows = new ComponentIndex();
+		rows.add(0L, 100005L, row(100005L, "20020131", "1", "Term"));
+		new ReleaseImage(dir, new FileRf2Source(source), "release").write(rows);
+		assertFalse(new ReleaseImage(dir, new FileRf2Source(source), "another release").isCurrent());
+	}
+
+	public void testHistoryLargerThanASegmentIsRejected() {
+		ComponentIndex rows = new ComponentIndex();
+		for (int year = 2002; year < 2020; year++) {
+			rows.add(0L, 100005L, row(100005L, year + "0131", "1", "Term"));
+		}
+		try {
+			new ReleaseImage(dir, new FileRf2Source(source), "release").write(rows);
+			fail("Expected the history to be rejected");
+		} catch (ApplicationException e) {
+			//Expected
+		}
+	}
+
+	public void testArchiveIsIdentifiedByItsCanonicalPath() {
+		File relative = new File(new File(dir, "."), "../" + dir.getName() + "/" + source.getName());
+		assertEquals(ReleaseImage.identify(source), ReleaseImage.identify(relative));
+	}
+}
@@ -0,0 +1,48 @@
+package org.snomed.negative_delta;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+public class Rf2RowTest extends TestCase {
+
+	private static final String HEADER = "id\teffectiveTime\tactive\tmoduleId\trefsetId\treferencedComponentId\tvalueId";
+	private static final String LINE = "800aa109-431f-4407-a431-6fe65e9db160\t20170731\t1\t900000000000207008\t900000000000489007\t100005\t0123";
+
+	//The same line held as a String, as bytes and as columns
+	private static Rf2Row[] forms(String line) {
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		ColumnarTable table = new ColumnarTable(HEADER);
+		return new Rf2Row[] {
+			new Rf2Row(line, false),
+			new SliceRf2Row(ByteBuffer.wrap(bytes), 0, bytes.length, 20170731L),
+			table.add(ByteBuffer.wrap(bytes), 0, bytes.length, 20170731L)
+		};
+	}
+
+	public void testFieldsReadAlikeFromEveryForm() {
+		for (Rf2Row row : forms(LINE)) {
+			String form = row.getClass().getSimpleName();
+			assertEquals(form, "1", row.getField(2));
+			assertEquals(form, "0123", row.getField(6));
+			assertEquals(form, "", row.getField(7));
+			assertEquals(form, 900000000000489007L, row.getSctidField(4));
+			assertEquals(form, 100005L, row.getSctidField(5));
+			assertEquals(form, 123L, row.getSctidField(6));
+			//Any field of digits reads as an SCTID, but a UUID or a missing field does not
+			assertEquals(form, 20170731L, row.getSctidField(1));
+			assertEquals(form, -1L, row.getSctidField(0));
+			assertEquals(form, -1L, row.getSctidField(7));
+		}
+	}
+
+	public void testEmptyAndOverlongFieldsAreNotSctids() {
+		String line = "800aa109-431f-4407-a431-6fe65e9db160\t20170731\t1\t900000000000207008\t900000000000489007\t\t1234567890123456789";
+		for (Rf2Row row : forms(line)) {
+			String form = row.getClass().getSimpleName();
+			assertEquals(form, -1L, row.getSctidField(5));
+			assertEquals(form, -1L, row.getSctidField(6));
+		}
+	}
+}
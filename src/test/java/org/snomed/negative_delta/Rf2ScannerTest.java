@@ -0,0 +1,83 @@
+package org.snomed.negative_delta;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.snomed.ApplicationException;
+
+import junit.framework.TestCase;
+
+public class Rf2ScannerTest extends TestCase {
+
+	private static final String HEADER = "id\teffectiveTime\tactive\tmoduleId\tdefinitionStatusId";
+	private static final String ROW = "100005\t20020131\t1\t900000000000207008\t900000000000074008";
+	private static final String LATER_ROW = "100005\t20170731\t0\t900000000000207008\t900000000000074008";
+	private static final long TARGET = 20170731L;
+
+	private static Rf2Scanner scan(String content) throws ApplicationException, IOException {
+		File file = File.createTempFile("sct2_Concept_Full", ".txt");
+		try {
+			try (OutputStream out = new FileOutputStream(file)) {
+				out.write(content.getBytes(StandardCharsets.UTF_8));
+			}
+			return Rf2Scanner.scan(new FileRf2Source(file), HEADER, TARGET);
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void assertRejected(String reason, String content) throws ApplicationException, IOException {
+		Rf2Scanner scan = scan(content);
+		assertFalse(reason, scan.isUnchanged());
+		assertEquals(reason, scan.getReason());
+	}
+
+	public void testCleanFileIsAccepted() throws ApplicationException, IOException {
+		Rf2Scanner scan = scan(HEADER + "\r\n" + ROW + "\r\n" + LATER_ROW + "\r\n");
+		assertTrue(scan.getReason(), scan.isUnchanged());
+		assertEquals(HEADER.length() + 2, scan.getHeaderLength());
+		assertEquals(2, scan.getRowCount());
+
+		scan = scan(HEADER + "\r\n");
+		assertTrue(scan.isUnchanged());
+		assertEquals(0, scan.getRowCount());
+	}
+
+	public void testLinesSpanningReadsAreAccepted() throws ApplicationException, IOException {
+		StringBuilder content = new StringBuilder(HEADER).append("\r\n");
+		int rows = 20000;
+		for (int row = 0; row < rows; row++) {
+			content.append(ROW).append("\r\n");
+		}
+		Rf2Scanner scan = scan(content.toString());
+		assertTrue(scan.getReason(), scan.isUnchanged());
+		assertEquals(rows, scan.getRowCount());
+	}
+
+	public void testHeaderThatDiffers() throws ApplicationException, IOException {
+		assertRejected("header differs", HEADER.replace("moduleId", "module") + "\r\n" + ROW + "\r\n");
+		assertRejected("header differs", HEADER + "\n" + ROW + "\r\n");
+		assertRejected("header differs", HEADER);
+		assertRejected("header differs", "");
+	}
+
+	public void testLinesNotEndedWithCrlf() throws ApplicationException, IOException {
+		assertRejected("line not ended with CRLF", HEADER + "\r\n" + ROW + "\n" + ROW + "\r\n");
+		assertRejected("last line not ended with CRLF", HEADER + "\r\n" + ROW + "\r\n" + ROW);
+		assertRejected("last line not ended with CRLF", HEADER + "\r\n" + ROW + "\r\n" + ROW + "\r");
+	}
+
+	public void testBlankOrMalformedLines() throws ApplicationException, IOException {
+		assertRejected("blank or malformed line", HEADER + "\r\n" + ROW + "\r\n\r\n");
+		assertRejected("blank or malformed line", HEADER + "\r\n\r\n" + ROW + "\r\n");
+		assertRejected("blank or malformed line", HEADER + "\r\n" + "100005 20020131 1 900000000000207008\r\n");
+		assertRejected("invalid effectiveTime", HEADER + "\r\n" + ROW.replace("20020131", "2002013x") + "\r\n");
+	}
+
+	public void testRowsLaterThanTheTarget() throws ApplicationException, IOException {
+		assertRejected("rows later than " + TARGET, HEADER + "\r\n" + ROW + "\r\n" + ROW.replace("20020131", "20180131") + "\r\n");
+	}
+}
@@ -0,0 +1,137 @@
+package org.snomed.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.snomed.ApplicationException;
+
+import junit.framework.TestCase;
+
+public class ArchiveBuilderTest extends TestCase {
+
+	private ExecutorService compressors;
+	private File spillLocation;
+	private File archive;
+
+	@Override
+	protected void setUp() throws IOException {
+		compressors = Executors.newFixedThreadPool(2);
+		spillLocation = Files.createTempDirectory("spill").toFile();
+	}
+
+	@Override
+	protected void tearDown() {
+		compressors.shutdownNow();
+		GlobalUtils.delete(spillLocation);
+		GlobalUtils.delete(archive);
+	}
+
+	public void testEntriesReadBackFromZipFile() throws ApplicationException, IOException {
+		String rootName = "ArchiveBuilderTest_" + System.nanoTime();
+		ArchiveBuilder builder = new ArchiveBuilder(rootName, spillLocation, compressors, 2);
+		//Several chunks, ending part way through one
+		byte[] large = rows(ParallelDeflaterOutputStream.CHUNK_SIZE * 5 / 2);
+		byte[] small = rows(1000);
+		byte[] exactChunk = rows(ParallelDeflaterOutputStream.CHUNK_SIZE);
+		write(builder, "Full/Terminology/sct2_Description_Full.txt", large);
+		write(builder, "Delta/Terminology/sct2_Concept_Delta.txt", small);
+		write(builder, "Snapshot/Terminology/sct2_Concept_Snapshot.txt", exactChunk);
+		write(builder, "Delta/Refset/der2_Refset_Delta.txt", new byte[0]);
+		//Written a byte at a time rather than in blocks
+		try (OutputStream out = builder.openEntry("Readme.txt")) {
+			for (byte b : small) {
+				out.write(b);
+			}
+		}
+		archive = builder.build();
+		assertEquals(rootName + ".zip", archive.getName());
+
+		List<String> names = new ArrayList<String>();
+		try (ZipFile zip = new ZipFile(archive)) {
+			assertEquals(5, zip.size());
+			assertContent(zip, rootName + "/Full/Terminology/sct2_Description_Full.txt", large);
+			assertContent(zip, rootName + "/Delta/Terminology/sct2_Concept_Delta.txt", small);
+			assertContent(zip, rootName + "/Snapshot/Terminology/sct2_Concept_Snapshot.txt", exactChunk);
+			assertContent(zip, rootName + "/Delta/Refset/der2_Refset_Delta.txt", new byte[0]);
+			assertContent(zip, rootName + "/Readme.txt", small);
+			for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+				names.add(entries.nextElement().getName());
+			}
+		}
+		//Held in name order, whichever entry was closed first
+		List<String> sorted = new ArrayList<String>(names);
+		Collections.sort(sorted);
+		assertEquals(sorted, names);
+		//Reading the entries in sequence checks each CRC, and the compressed size against the bytes inflated
+		try (ZipInputStream in = new ZipInputStream(new FileInputStream(archive))) {
+			int entries = 0;
+			for (ZipEntry entry; (entry = in.getNextEntry()) != null; entries++) {
+				assertEquals(names.get(entries), entry.getName());
+				readFully(in);
+			}
+			assertEquals(5, entries);
+		}
+		assertEquals(0, spillLocation.list().length);
+	}
+
+	public void testEmptyArchiveIsNotBuilt() throws ApplicationException {
+		ArchiveBuilder builder = new ArchiveBuilder("ArchiveBuilderTest_" + System.nanoTime(), spillLocation, compressors, 2);
+		archive = builder.build();
+		assertNull(archive);
+	}
+
+	private static void write(ArchiveBuilder builder, String path, byte[] content) throws ApplicationException, IOException {
+		try (OutputStream out = builder.openEntry(path)) {
+			out.write(content);
+		}
+	}
+
+	private static void assertContent(ZipFile zip, String name, byte[] expected) throws IOException {
+		ZipEntry entry = zip.getEntry(name);
+		assertNotNull(name, entry);
+		assertEquals(name, ZipEntry.DEFLATED, entry.getMethod());
+		assertEquals(name, expected.length, entry.getSize());
+		CRC32 crc = new CRC32();
+		crc.update(expected);
+		assertEquals(name, crc.getValue(), entry.getCrc());
+		try (InputStream in = zip.getInputStream(entry)) {
+			assertTrue(name, Arrays.equals(expected, readFully(in)));
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 * 1024];
+		for (int n; (n = in.read(buffer)) != -1;) {
+			content.write(buffer, 0, n);
+		}
+		return content.toByteArray();
+	}
+
+	//RF2 like rows, varied enough not to compress away to nothing
+	private static byte[] rows(int size) {
+		StringBuilder rows = new StringBuilder(size + 100);
+		for (long id = 100005; rows.length() < size; id += 7919) {
+			rows.append(id).append("\t20170731\t1\t900000000000207008\tTerm ").append(id * 31 % 100003).append("\r\n");
+		}
+		rows.setLength(size);
+		return rows.toString().getBytes(StandardCharsets.US_ASCII);
+	}
+}
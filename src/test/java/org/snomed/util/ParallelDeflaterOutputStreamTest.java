@@ -0,0 +1,74 @@
+package org.snomed.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import junit.framework.TestCase;
+
+public class ParallelDeflaterOutputStreamTest extends TestCase {
+
+	public void testChunksInflateAsOneStream() throws IOException, DataFormatException {
+		//Random bytes do not compress, so every chunk fills more than one deflate output buffer
+		byte[] data = new byte[ParallelDeflaterOutputStream.CHUNK_SIZE * 3 + 12345];
+		new Random(42).nextBytes(data);
+		for (int i = 0; i < data.length / 2; i++) {
+			data[i] = (byte) ('a' + i % 7);
+		}
+		ExecutorService compressors = Executors.newFixedThreadPool(3);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(compressed, compressors, 2);
+		try {
+			out.write(data, 0, 100);
+			out.write(data[100]);
+			out.write(data, 101, data.length - 101);
+			out.close();
+			//Closing twice writes nothing more
+			out.close();
+		} finally {
+			compressors.shutdownNow();
+		}
+		assertEquals(data.length, out.getUncompressedSize());
+		assertEquals(compressed.size(), out.getCompressedSize());
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		assertEquals(crc.getValue(), out.getCrc());
+
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(compressed.toByteArray());
+			byte[] inflated = new byte[data.length];
+			int length = 0;
+			while (!inflater.finished() && length < inflated.length) {
+				length += inflater.inflate(inflated, length, inflated.length - length);
+			}
+			//Only the last chunk ends the stream, and nothing follows it
+			assertTrue(inflater.finished());
+			assertEquals(0, inflater.getRemaining());
+			assertTrue(Arrays.equals(data, inflated));
+		} finally {
+			inflater.end();
+		}
+	}
+
+	public void testEmptyStream() throws IOException {
+		ExecutorService compressors = Executors.newSingleThreadExecutor();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(compressed, compressors, 2);
+		try {
+			out.close();
+		} finally {
+			compressors.shutdownNow();
+		}
+		assertEquals(0, out.getUncompressedSize());
+		assertEquals(0, out.getCrc());
+		assertTrue(compressed.size() > 0);
+		assertEquals(compressed.size(), out.getCompressedSize());
+	}
+}